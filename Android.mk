@@ -12,6 +12,12 @@ LOCAL_SRC_FILES := \
 
 LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/res
 
+# The prebuilt search Index, generated on a device by PrebuiltIndexGenerator from the tests
+# and copied to assets/search_index.db. Settings builds its Index on the device without it.
+ifneq (,$(wildcard $(LOCAL_PATH)/assets/search_index.db))
+LOCAL_ASSET_DIR := $(LOCAL_PATH)/assets
+endif
+
 LOCAL_PACKAGE_NAME := Settings
 LOCAL_CERTIFICATE := platform
 LOCAL_PRIVILEGED_MODULE := true
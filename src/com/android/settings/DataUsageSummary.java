@@ -126,6 +126,7 @@ import android.widget.TextView;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
+import com.android.settings.net.ChartDataCache;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
@@ -142,6 +143,7 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -191,6 +193,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private TelephonyManager mTelephonyManager;
 
     private INetworkStatsSession mStatsSession;
+    private ChartDataCache mChartDataCache;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -298,6 +301,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
+        mChartDataCache = new ChartDataCache(context, mStatsSession);
 
         mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
         mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false);
@@ -457,6 +461,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    mChartDataCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -1244,7 +1249,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mChartDataCache, args);
         }
 
         @Override
@@ -1523,16 +1528,84 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     }
 
     /**
-     * Adapter of applications, sorted by total usage descending.
+     * Adapter of applications, sorted by total usage descending. Only the
+     * items of the first screen are sorted when binding; the others are
+     * sorted the first time one of them is needed.
      */
     public static class DataUsageAdapter extends BaseAdapter {
+        /** Number of items sorted when binding, enough to fill the first screen. */
+        private static final int SORTED_HEAD_SIZE = 32;
+
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
         private final UserManager mUm;
 
         private ArrayList<AppItem> mItems = Lists.newArrayList();
+        private int mSortedCount;
         private long mLargest;
 
+        private final UidTotals mUidTotals = new UidTotals();
+        private NetworkStats.Entry mEntry;
+
+        /**
+         * Total usage of each UID, in dense arrays indexed by an open
+         * addressing table holding the index + 1 of each UID. Nothing is
+         * allocated once the arrays are large enough.
+         */
+        static class UidTotals {
+            int[] uids = new int[64];
+            long[] totals = new long[64];
+            int size;
+            private int[] mTable = new int[128];
+
+            void clear() {
+                Arrays.fill(mTable, 0);
+                size = 0;
+            }
+
+            void add(int uid, long bytes) {
+                final int mask = mTable.length - 1;
+                int slot = hash(uid) & mask;
+                int index;
+                while ((index = mTable[slot] - 1) >= 0) {
+                    if (uids[index] == uid) {
+                        totals[index] += bytes;
+                        return;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+
+                if (size == uids.length) {
+                    uids = Arrays.copyOf(uids, size * 2);
+                    totals = Arrays.copyOf(totals, size * 2);
+                }
+                uids[size] = uid;
+                totals[size] = bytes;
+                size++;
+                mTable[slot] = size;
+                if (size * 2 > mTable.length) {
+                    rehash(mTable.length * 2);
+                }
+            }
+
+            private void rehash(int capacity) {
+                mTable = new int[capacity];
+                final int mask = capacity - 1;
+                for (int i = 0; i < size; i++) {
+                    int slot = hash(uids[i]) & mask;
+                    while (mTable[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    mTable[slot] = i + 1;
+                }
+            }
+
+            private static int hash(int uid) {
+                final int h = uid * 0x9E3779B9;
+                return h ^ (h >>> 16);
+            }
+        }
+
         public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
@@ -1544,29 +1617,43 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
             mItems.clear();
+            mSortedCount = 0;
             mLargest = 0;
 
             final int currentUserId = ActivityManager.getCurrentUser();
             final List<UserHandle> profiles = mUm.getUserProfiles();
+            final SparseBooleanArray profileIds = new SparseBooleanArray(profiles.size());
+            for (int i = 0; i < profiles.size(); i++) {
+                profileIds.put(profiles.get(i).getIdentifier(), true);
+            }
             final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
 
-            NetworkStats.Entry entry = null;
+            // First collapse the entries by UID, which is all that decides
+            // how they are collapsed into items.
+            mUidTotals.clear();
+            NetworkStats.Entry entry = mEntry;
             final int size = stats != null ? stats.size() : 0;
             for (int i = 0; i < size; i++) {
                 entry = stats.getValues(i, entry);
+                mUidTotals.add(entry.uid, entry.rxBytes + entry.txBytes);
+            }
+            mEntry = entry;
 
+            final int uidCount = mUidTotals.size;
+            for (int i = 0; i < uidCount; i++) {
                 // Decide how to collapse items together
-                final int uid = entry.uid;
+                final int uid = mUidTotals.uids[i];
+                final long total = mUidTotals.totals[i];
 
                 final int collapseKey;
                 final int category;
                 final int userId = UserHandle.getUserId(uid);
                 if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
+                    if (profileIds.get(userId)) {
                         if (userId != currentUserId) {
                             // Add to a managed user item.
                             final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
+                            accumulate(managedKey, knownItems, uid, total,
                                     AppItem.CATEGORY_USER);
                         }
                         // Add to app item.
@@ -1584,14 +1671,14 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     collapseKey = android.os.Process.SYSTEM_UID;
                     category = AppItem.CATEGORY_APP;
                 }
-                accumulate(collapseKey, knownItems, entry, category);
+                accumulate(collapseKey, knownItems, uid, total, category);
             }
 
             final int restrictedUidsMax = restrictedUids.length;
             for (int i = 0; i < restrictedUidsMax; ++i) {
                 final int uid = restrictedUids[i];
                 // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
+                if (!profileIds.get(UserHandle.getUserId(uid))) {
                     continue;
                 }
 
@@ -1611,23 +1698,23 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 mItems.add(title);
             }
 
-            Collections.sort(mItems);
+            sortHead();
             notifyDataSetChanged();
         }
 
         /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
+         * Accumulate data usage of a UID for the item mapped by the collapse key.
          * Creates the item if needed.
          *
          * @param collapseKey the collapse key used to map the item.
          * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
+         * @param uid the UID the data usage belongs to.
+         * @param total the data usage of the UID.
          * @param itemCategory the item is categorized on the list view by this category. Must be
          *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
          */
         private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
+                int uid, long total, int itemCategory) {
             AppItem item = knownItems.get(collapseKey);
             if (item == null) {
                 item = new AppItem(collapseKey);
@@ -1636,12 +1723,68 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 knownItems.put(item.key, item);
             }
             item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
+            item.total += total;
             if (mLargest < item.total) {
                 mLargest = item.total;
             }
         }
 
+        /**
+         * Sort the first {@link #SORTED_HEAD_SIZE} items, after moving the
+         * smallest items in front of the others.
+         */
+        private void sortHead() {
+            final int size = mItems.size();
+            if (size > SORTED_HEAD_SIZE) {
+                selectHead(mItems, SORTED_HEAD_SIZE);
+                Collections.sort(mItems.subList(0, SORTED_HEAD_SIZE));
+                mSortedCount = SORTED_HEAD_SIZE;
+            } else {
+                Collections.sort(mItems);
+                mSortedCount = size;
+            }
+        }
+
+        /**
+         * Reorder the given items so that the first {@code count} ones are
+         * the smallest, in no particular order.
+         */
+        static void selectHead(ArrayList<AppItem> items, int count) {
+            final int target = count - 1;
+            int left = 0;
+            int right = items.size() - 1;
+            while (left < right) {
+                final AppItem pivot = items.get((left + right) >>> 1);
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (items.get(i).compareTo(pivot) < 0) i++;
+                    while (items.get(j).compareTo(pivot) > 0) j--;
+                    if (i <= j) {
+                        Collections.swap(items, i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (target <= j) {
+                    right = j;
+                } else if (target >= i) {
+                    left = i;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private AppItem getAppItem(int position) {
+            if (position >= mSortedCount) {
+                // scrolled past the first screen; sort the remaining items
+                Collections.sort(mItems.subList(mSortedCount, mItems.size()));
+                mSortedCount = mItems.size();
+            }
+            return mItems.get(position);
+        }
+
         @Override
         public int getCount() {
             return mItems.size();
@@ -1649,12 +1792,12 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return getAppItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return getAppItem(position).key;
         }
 
         /**
@@ -1670,7 +1813,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
          */
         @Override
         public int getItemViewType(int position) {
-            final AppItem item = mItems.get(position);
+            final AppItem item = getAppItem(position);
             if (item.category == AppItem.CATEGORY_APP_TITLE) {
                 return 1;
             } else {
@@ -1693,7 +1836,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            final AppItem item = mItems.get(position);
+            final AppItem item = getAppItem(position);
             if (getItemViewType(position) == 1) {
                 if (convertView == null) {
                     convertView = inflateCategoryHeader(LayoutInflater.from(parent.getContext()),
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * On-disk cache of the subjects shown by {@link TrustedCredentialsSettings}.
+ *
+ * Keeps the primary and secondary subject of each certificate, keyed by the SHA-1 digest of
+ * its encoding, so that the list of certificates can be shown without parsing each of them
+ * again. Only the certificates looked up since the previous save are written back.
+ */
+class TrustedCertificateCache {
+    static final String TAG = "TrustedCertificateCache";
+    static final boolean DEBUG = false;
+
+    private static final String FILE_PREFIX = "trusted_certificates_";
+    private static final int VERSION = 1;
+
+    private static final HashMap<String, TrustedCertificateCache> sInstances =
+            new HashMap<String, TrustedCertificateCache>();
+
+    /**
+     * The subject of a certificate, as shown in the list.
+     */
+    static class Subject {
+        final String primary;
+        final String secondary;
+
+        Subject(String primary, String secondary) {
+            this.primary = primary;
+            this.secondary = secondary;
+        }
+    }
+
+    final VersionedRecordFile mFile;
+
+    // Synchronize on mLoadLock for the following.
+    final Object mLoadLock = new Object();
+    boolean mLoaded;
+
+    // Synchronize on this for the following.
+    final HashMap<String, Subject> mSubjects = new HashMap<String, Subject>();
+    final HashSet<String> mUsed = new HashSet<String>();
+    boolean mDirty;
+
+    private TrustedCertificateCache(Context context, String name) {
+        mFile = new VersionedRecordFile(new File(context.getCacheDir(), FILE_PREFIX + name),
+                VERSION);
+    }
+
+    /**
+     * Return the cache of the given name, shared by the whole process.
+     */
+    static TrustedCertificateCache getInstance(Context context, String name) {
+        synchronized (sInstances) {
+            TrustedCertificateCache cache = sInstances.get(name);
+            if (cache == null) {
+                cache = new TrustedCertificateCache(context.getApplicationContext(), name);
+                sInstances.put(name, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Return the key of the given encoded certificate, or null if it can't be computed.
+     */
+    static String getKey(byte[] encodedCertificate) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(encodedCertificate);
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Unable to compute certificate digest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the cache from disk, once. The file is read without holding this. Must not be
+     * called on the main thread.
+     */
+    void load() {
+        synchronized (mLoadLock) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+
+            final long start = System.currentTimeMillis();
+            final HashMap<String, Subject> loaded = new HashMap<String, Subject>();
+            final boolean read = mFile.read(new VersionedRecordFile.Reader() {
+                @Override
+                public void read(DataInputStream in) throws IOException {
+                    final int count = in.readInt();
+                    for (int i=0; i<count; i++) {
+                        final String key = in.readUTF();
+                        loaded.put(key, new Subject(in.readUTF(), in.readUTF()));
+                    }
+                }
+            });
+            if (!read) {
+                loaded.clear();
+            }
+
+            synchronized (this) {
+                // Subjects put while reading win.
+                loaded.putAll(mSubjects);
+                mSubjects.clear();
+                mSubjects.putAll(loaded);
+            }
+            if (DEBUG) Log.i(TAG, "Loaded " + loaded.size() + " subjects in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    synchronized Subject get(String key) {
+        final Subject subject = mSubjects.get(key);
+        if (subject != null) {
+            mUsed.add(key);
+        }
+        return subject;
+    }
+
+    synchronized void put(String key, Subject subject) {
+        mSubjects.put(key, subject);
+        mUsed.add(key);
+        mDirty = true;
+    }
+
+    /**
+     * Drop the subjects not looked up since the previous save and write the cache, if
+     * anything changed. The cache is copied under the lock and written without holding it.
+     * Must not be called on the main thread.
+     */
+    void save() {
+        final String[] keys;
+        final Subject[] subjects;
+        synchronized (this) {
+            final Iterator<String> it = mSubjects.keySet().iterator();
+            while (it.hasNext()) {
+                if (!mUsed.contains(it.next())) {
+                    it.remove();
+                    mDirty = true;
+                }
+            }
+            mUsed.clear();
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            keys = new String[mSubjects.size()];
+            subjects = new Subject[keys.length];
+            int i = 0;
+            for (Map.Entry<String, Subject> entry : mSubjects.entrySet()) {
+                keys[i] = entry.getKey();
+                subjects[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        mFile.write(new VersionedRecordFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(keys.length);
+                for (int i=0; i<keys.length; i++) {
+                    out.writeUTF(keys[i]);
+                    out.writeUTF(subjects[i].primary);
+                    out.writeUTF(subjects[i].secondary);
+                }
+            }
+        });
+    }
+}
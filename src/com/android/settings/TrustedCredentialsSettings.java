@@ -54,11 +54,16 @@ import android.widget.TextView;
 
 import com.android.internal.util.ParcelableString;
 
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TrustedCredentialsSettings extends Fragment {
 
@@ -68,6 +73,9 @@ public class TrustedCredentialsSettings extends Fragment {
 
     private static final String USER_ACTION = "com.android.settings.TRUSTED_CREDENTIALS_USER";
 
+    /** Number of threads fetching and parsing the certificates of a profile */
+    private static final int LOADER_THREADS = 4;
+
     private enum Tab {
         SYSTEM("system",
                R.string.trusted_credentials_system_tab,
@@ -402,10 +410,20 @@ public class TrustedCredentialsSettings extends Fragment {
             mTab = tab;
         }
 
-        private class AliasLoader extends AsyncTask<Void, Integer, SparseArray<List<CertHolder>>> {
+        /**
+         * Loads the certificates of every profile. Each profile is split in batches fetched and
+         * parsed in parallel, and is shown as soon as all its certificates are loaded.
+         */
+        private class AliasLoader
+                extends AsyncTask<Void, LoadProgress, SparseArray<List<CertHolder>>> {
+            private final Context mContext;
             private ProgressBar mProgressBar;
             private View mList;
 
+            private AliasLoader() {
+                mContext = getActivity().getApplicationContext();
+            }
+
             @Override protected void onPreExecute() {
                 View content = mTabHost.getTabContentView();
                 mProgressBar = (ProgressBar) content.findViewById(mTab.mProgress);
@@ -416,6 +434,10 @@ public class TrustedCredentialsSettings extends Fragment {
             @Override protected SparseArray<List<CertHolder>> doInBackground(Void... params) {
                 SparseArray<List<CertHolder>> certHoldersByProfile =
                         new SparseArray<List<CertHolder>>();
+                final TrustedCertificateCache cache =
+                        TrustedCertificateCache.getInstance(mContext, mTab.mTag);
+                cache.load();
+                final ExecutorService executor = Executors.newFixedThreadPool(LOADER_THREADS);
                 try {
                     List<UserHandle> profiles = mUserManager.getUserProfiles();
                     final int n = profiles.size();
@@ -424,11 +446,11 @@ public class TrustedCredentialsSettings extends Fragment {
                     SparseArray<List<ParcelableString>> aliasesByProfileId = new SparseArray<
                             List<ParcelableString>>(n);
                     int max = 0;
-                    int progress = 0;
+                    final AtomicInteger progress = new AtomicInteger();
                     for (int i = 0; i < n; ++i) {
                         UserHandle profile = profiles.get(i);
                         int profileId = profile.getIdentifier();
-                        KeyChainConnection keyChainConnection = KeyChain.bindAsUser(getActivity(),
+                        KeyChainConnection keyChainConnection = KeyChain.bindAsUser(mContext,
                                 profile);
                         // Saving the connection for later use on the certificate dialog.
                         mKeyChainConnectionByProfileId.put(profileId, keyChainConnection);
@@ -443,36 +465,53 @@ public class TrustedCredentialsSettings extends Fragment {
                         List<ParcelableString> aliases = aliasesByProfileId.get(profileId);
                         IKeyChainService service = mKeyChainConnectionByProfileId.get(profileId)
                                 .getService();
-                        List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
                         final int aliasMax = aliases.size();
-                        for (int j = 0; j < aliasMax; ++j) {
-                            String alias = aliases.get(j).string;
-                            byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
-                                    true);
-                            X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
-                            certHolders.add(new CertHolder(service, mAdapter,
-                                    mTab, alias, cert, profileId));
-                            publishProgress(++progress, max);
+                        final int batchSize = (aliasMax + LOADER_THREADS - 1) / LOADER_THREADS;
+                        List<Future<List<CertHolder>>> batches =
+                                new ArrayList<Future<List<CertHolder>>>(LOADER_THREADS);
+                        for (int j = 0; j < aliasMax; j += batchSize) {
+                            batches.add(executor.submit(new BatchLoader(service, cache,
+                                    aliases.subList(j, Math.min(aliasMax, j + batchSize)),
+                                    profileId, progress, max)));
+                        }
+                        List<CertHolder> certHolders = new ArrayList<CertHolder>(aliasMax);
+                        for (Future<List<CertHolder>> batch : batches) {
+                            certHolders.addAll(batch.get());
                         }
                         Collections.sort(certHolders);
                         certHoldersByProfile.put(profileId, certHolders);
+                        publishProgress(new LoadProgress(progress.get(), max, profileId,
+                                certHolders));
                     }
+                    cache.save();
                     return certHoldersByProfile;
                 } catch (RemoteException e) {
                     Log.e(TAG, "Remote exception while loading aliases.", e);
                     return new SparseArray<List<CertHolder>>();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Exception while loading certificates.", e.getCause());
+                    return new SparseArray<List<CertHolder>>();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "InterruptedException while loading aliases.", e);
                     return new SparseArray<List<CertHolder>>();
+                } finally {
+                    executor.shutdownNow();
                 }
             }
-            @Override protected void onProgressUpdate(Integer... progressAndMax) {
-                int progress = progressAndMax[0];
-                int max = progressAndMax[1];
-                if (max != mProgressBar.getMax()) {
-                    mProgressBar.setMax(max);
+            @Override protected void onProgressUpdate(LoadProgress... progresses) {
+                for (LoadProgress progress : progresses) {
+                    if (progress.mMax != mProgressBar.getMax()) {
+                        mProgressBar.setMax(progress.mMax);
+                    }
+                    mProgressBar.setProgress(progress.mProgress);
+                    if (progress.mCertHolders != null) {
+                        // Show the profiles already loaded while the others are
+                        // still loading.
+                        mCertHoldersByUserId.put(progress.mProfileId, progress.mCertHolders);
+                        mAdapter.notifyDataSetChanged();
+                        mList.setVisibility(View.VISIBLE);
+                    }
                 }
-                mProgressBar.setProgress(progress);
             }
             @Override protected void onPostExecute(SparseArray<List<CertHolder>> certHolders) {
                 mCertHoldersByUserId.clear();
@@ -485,6 +524,56 @@ public class TrustedCredentialsSettings extends Fragment {
                 mList.setVisibility(View.VISIBLE);
                 mProgressBar.setProgress(0);
             }
+
+            /**
+             * Fetches and parses a batch of certificates of a profile, reusing the cached
+             * subjects of the certificates already seen.
+             */
+            private class BatchLoader implements Callable<List<CertHolder>> {
+                private final IKeyChainService mService;
+                private final TrustedCertificateCache mCache;
+                private final List<ParcelableString> mAliases;
+                private final int mProfileId;
+                private final AtomicInteger mProgress;
+                private final int mMax;
+
+                private BatchLoader(IKeyChainService service, TrustedCertificateCache cache,
+                        List<ParcelableString> aliases, int profileId, AtomicInteger progress,
+                        int max) {
+                    mService = service;
+                    mCache = cache;
+                    mAliases = aliases;
+                    mProfileId = profileId;
+                    mProgress = progress;
+                    mMax = max;
+                }
+
+                @Override
+                public List<CertHolder> call() throws RemoteException {
+                    final int n = mAliases.size();
+                    List<CertHolder> certHolders = new ArrayList<CertHolder>(n);
+                    for (int i = 0; i < n; ++i) {
+                        if (isCancelled()) {
+                            break;
+                        }
+                        String alias = mAliases.get(i).string;
+                        byte[] encodedCertificate = mService.getEncodedCaCertificate(alias, true);
+                        String key = TrustedCertificateCache.getKey(encodedCertificate);
+                        TrustedCertificateCache.Subject subject =
+                                key != null ? mCache.get(key) : null;
+                        if (subject == null) {
+                            subject = getSubject(KeyChain.toCertificate(encodedCertificate));
+                            if (key != null) {
+                                mCache.put(key, subject);
+                            }
+                        }
+                        certHolders.add(new CertHolder(mService, mAdapter, mTab, alias,
+                                encodedCertificate, subject, mProfileId));
+                        publishProgress(new LoadProgress(mProgress.incrementAndGet(), mMax));
+                    }
+                    return certHolders;
+                }
+            }
         }
 
         public void remove(CertHolder certHolder) {
@@ -497,15 +586,64 @@ public class TrustedCredentialsSettings extends Fragment {
         }
     }
 
+    /**
+     * Progress of an {@link AdapterData.AliasLoader}, with the certificates of a profile once
+     * they are all loaded.
+     */
+    private static class LoadProgress {
+        private final int mProgress;
+        private final int mMax;
+        private final int mProfileId;
+        private final List<CertHolder> mCertHolders;
+
+        private LoadProgress(int progress, int max) {
+            this(progress, max, UserHandle.USER_NULL, null);
+        }
+
+        private LoadProgress(int progress, int max, int profileId,
+                List<CertHolder> certHolders) {
+            mProgress = progress;
+            mMax = max;
+            mProfileId = profileId;
+            mCertHolders = certHolders;
+        }
+    }
+
+    /**
+     * Returns the subject shown in the list for the given certificate.
+     */
+    private static TrustedCertificateCache.Subject getSubject(X509Certificate x509Cert) {
+        SslCertificate sslCert = new SslCertificate(x509Cert);
+
+        String cn = sslCert.getIssuedTo().getCName();
+        String o = sslCert.getIssuedTo().getOName();
+        String ou = sslCert.getIssuedTo().getUName();
+        // if we have a O, use O as primary subject, secondary prefer CN over OU
+        // if we don't have an O, use CN as primary, empty secondary
+        // if we don't have O or CN, use DName as primary, empty secondary
+        if (!o.isEmpty()) {
+            if (!cn.isEmpty()) {
+                return new TrustedCertificateCache.Subject(o, cn);
+            } else {
+                return new TrustedCertificateCache.Subject(o, ou);
+            }
+        } else {
+            if (!cn.isEmpty()) {
+                return new TrustedCertificateCache.Subject(cn, "");
+            } else {
+                return new TrustedCertificateCache.Subject(sslCert.getIssuedTo().getDName(), "");
+            }
+        }
+    }
+
     private static class CertHolder implements Comparable<CertHolder> {
         public int mProfileId;
         private final IKeyChainService mService;
         private final TrustedCertificateAdapterCommons mAdapter;
         private final Tab mTab;
         private final String mAlias;
-        private final X509Certificate mX509Cert;
+        private final byte[] mEncodedCert;
 
-        private final SslCertificate mSslCert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
         private boolean mDeleted;
@@ -514,40 +652,18 @@ public class TrustedCredentialsSettings extends Fragment {
                            TrustedCertificateAdapterCommons adapter,
                            Tab tab,
                            String alias,
-                           X509Certificate x509Cert,
+                           byte[] encodedCert,
+                           TrustedCertificateCache.Subject subject,
                            int profileId) {
             mProfileId = profileId;
             mService = service;
             mAdapter = adapter;
             mTab = tab;
             mAlias = alias;
-            mX509Cert = x509Cert;
-
-            mSslCert = new SslCertificate(x509Cert);
-
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
-            // if we have a O, use O as primary subject, secondary prefer CN over OU
-            // if we don't have an O, use CN as primary, empty secondary
-            // if we don't have O or CN, use DName as primary, empty secondary
-            if (!o.isEmpty()) {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = cn;
-                } else {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = ou;
-                }
-            } else {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = cn;
-                    mSubjectSecondary = "";
-                } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
-                    mSubjectSecondary = "";
-                }
-            }
+            mEncodedCert = encodedCert;
+
+            mSubjectPrimary = subject.primary;
+            mSubjectSecondary = subject.secondary;
             try {
                 mDeleted = mTab.deleted(mService, mAlias);
             } catch (RemoteException e) {
@@ -733,16 +849,11 @@ public class TrustedCredentialsSettings extends Fragment {
                         mCertHolder.mProfileId);
                 IKeyChainService service = keyChainConnection.getService();
                 if (mCertHolder.mDeleted) {
-                    byte[] bytes = mCertHolder.mX509Cert.getEncoded();
-                    service.installCaCertificate(bytes);
+                    service.installCaCertificate(mCertHolder.mEncodedCert);
                     return true;
                 } else {
                     return service.deleteCaCertificate(mCertHolder.mAlias);
                 }
-            } catch (CertificateEncodingException e) {
-                Log.w(TAG, "Error while toggling alias " + mCertHolder.mAlias,
-                        e);
-                return false;
             } catch (IllegalStateException e) {
                 // used by installCaCertificate to report errors
                 Log.w(TAG, "Error while toggling alias " + mCertHolder.mAlias, e);
@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.AppGlobals;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of the label and icon of each UID, shared by the battery, data usage
+ * and running apps screens.
+ *
+ * The label of a UID is the label of its only package, or the shared user label of its
+ * packages. Labels are kept on disk across launches, checked against the installed packages
+ * before being used again, and dropped when a package of their UID changes. Icons are only
+ * kept in memory, for the most recently used UIDs, as constant states that each consumer
+ * draws its own drawable from. Requests are served by a few worker threads, the ones for
+ * visible rows first.
+ */
+public class UidLabelCache {
+    static final String TAG = "UidLabelCache";
+    static final boolean DEBUG = false;
+
+    /** Priority of requests for rows that are on screen. */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Priority of requests for rows that may be shown later. */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    private static final String FILE_NAME = "uid_labels";
+    private static final int VERSION = 1;
+
+    private static final int MAX_ENTRIES = 100;
+    private static final int MAX_PERSISTED_ENTRIES = 500;
+    private static final int WORKER_THREADS = 2;
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private static UidLabelCache sInstance;
+
+    /**
+     * What is known about a UID. Immutable.
+     */
+    public static class Info {
+        public final int uid;
+        /** Packages of the UID, or null if it has none. */
+        public final String[] packages;
+        /** Label of each package, or its name if it has none. */
+        public final String[] packageLabels;
+        /** Label of the UID, or null if its packages don't name it. */
+        public final String label;
+        /** Package the label comes from, or null. */
+        public final String labelPackage;
+        /** Package the icon comes from, or null. */
+        public final String iconPackage;
+
+        final Drawable.ConstantState iconState;
+        final long stamp;
+
+        Info(int uid, String[] packages, String[] packageLabels, String label,
+                String labelPackage, String iconPackage, Drawable.ConstantState iconState,
+                long stamp) {
+            this.uid = uid;
+            this.packages = packages;
+            this.packageLabels = packageLabels;
+            this.label = label;
+            this.labelPackage = labelPackage;
+            this.iconPackage = iconPackage;
+            this.iconState = iconState;
+            this.stamp = stamp;
+        }
+
+        Info withIcon(Drawable.ConstantState iconState) {
+            return new Info(uid, packages, packageLabels, label, labelPackage, iconPackage,
+                    iconState, stamp);
+        }
+
+        /**
+         * Return a new drawable of the icon of the UID, for the caller only, or null if none
+         * of its packages has one.
+         */
+        public Drawable newIcon(Resources res) {
+            return iconState != null ? iconState.newDrawable(res) : null;
+        }
+    }
+
+    /**
+     * Told when the info of a requested UID is available, on the main thread.
+     */
+    public interface Listener {
+        void onUidInfoLoaded(Info info);
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+        final int uid;
+        final ArrayList<Listener> listeners = new ArrayList<Listener>();
+        int priority;
+        long sequence;
+
+        Request(int uid) {
+            this.uid = uid;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            final Info info = get(uid);
+            final Listener[] listeners;
+            synchronized (UidLabelCache.this) {
+                mPending.remove(uid);
+                listeners = this.listeners.toArray(new Listener[this.listeners.size()]);
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : listeners) {
+                        listener.onUidInfoLoaded(info);
+                    }
+                }
+            });
+        }
+    }
+
+    private final Context mContext;
+    private final VersionedRecordFile mFile;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, Info> mInfos = new LruCache<Integer, Info>(MAX_ENTRIES);
+    private final ThreadPoolExecutor mExecutor;
+
+    // Synchronize on mLoadLock for the following. Workers wait on it for the file to be
+    // read, without holding this.
+    private final Object mLoadLock = new Object();
+    private boolean mLoaded;
+
+    // Synchronize on this for the following.
+    private final SparseArray<Request> mPending = new SparseArray<Request>();
+    // Bumped by invalidate() and invalidateAll(), so that infos resolved in the meantime
+    // are not kept.
+    private final SparseIntArray mUidGenerations = new SparseIntArray();
+    private int mGeneration;
+    private final LinkedHashMap<Integer, Info> mPersisted =
+            new LinkedHashMap<Integer, Info>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Info> eldest) {
+            return size() > MAX_PERSISTED_ENTRIES;
+        }
+    };
+    private long mSequence;
+    private boolean mDirty;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                invalidateAll();
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                if (uids != null) {
+                    for (int uid : uids) {
+                        invalidate(uid);
+                    }
+                }
+            } else {
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid != -1) {
+                    invalidate(uid);
+                }
+            }
+        }
+    };
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        }
+    };
+
+    /**
+     * Return the cache shared by the whole process.
+     */
+    public static UidLabelCache getInstance(Context context) {
+        synchronized (UidLabelCache.class) {
+            if (sInstance == null) {
+                sInstance = new UidLabelCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private UidLabelCache(Context context) {
+        mContext = context;
+        mFile = new VersionedRecordFile(new File(context.getCacheDir(), FILE_NAME), VERSION);
+        mExecutor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG + " #" + (++mCount));
+            }
+        });
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, packageFilter,
+                null, null);
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    /**
+     * Return the info of the given UID if it's in memory, or null.
+     */
+    public Info getCached(int uid) {
+        return mInfos.get(uid);
+    }
+
+    /**
+     * Return the info of the given UID, blocking until it's resolved. Must not be called on
+     * the main thread.
+     */
+    public Info get(int uid) {
+        Info info = mInfos.get(uid);
+        if (info == null) {
+            final long generation;
+            synchronized (this) {
+                generation = getGenerationLocked(uid);
+            }
+            info = resolve(uid, generation);
+            synchronized (this) {
+                if (generation == getGenerationLocked(uid)) {
+                    mInfos.put(uid, info);
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Resolve the info of the given UID on a worker thread, and give it to the listener on
+     * the main thread. The listener is called right away if the info is in memory. Requests
+     * of higher priority (lower values) are served first.
+     */
+    public void request(int uid, int priority, Listener listener) {
+        final Info info = mInfos.get(uid);
+        if (info != null) {
+            listener.onUidInfoLoaded(info);
+            return;
+        }
+        synchronized (this) {
+            Request request = mPending.get(uid);
+            if (request == null) {
+                request = new Request(uid);
+                request.priority = priority;
+                request.sequence = mSequence++;
+                request.listeners.add(listener);
+                mPending.put(uid, request);
+                mExecutor.execute(request);
+            } else {
+                request.listeners.add(listener);
+                if (priority < request.priority && mExecutor.getQueue().remove(request)) {
+                    request.priority = priority;
+                    mExecutor.execute(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the given listener, which won't be told about pending requests.
+     */
+    public synchronized void cancel(Listener listener) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            mPending.valueAt(i).listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Drop what is known about the given UID.
+     */
+    public void invalidate(int uid) {
+        synchronized (this) {
+            mUidGenerations.put(uid, mUidGenerations.get(uid) + 1);
+            mInfos.remove(uid);
+            if (mPersisted.remove(uid) != null) {
+                scheduleSaveLocked();
+            }
+        }
+    }
+
+    /**
+     * Drop what is known about every UID.
+     */
+    public void invalidateAll() {
+        synchronized (this) {
+            mGeneration++;
+            mUidGenerations.clear();
+            mInfos.evictAll();
+            mPersisted.clear();
+            scheduleSaveLocked();
+        }
+    }
+
+    private long getGenerationLocked(int uid) {
+        return ((long) mGeneration << 32) | (mUidGenerations.get(uid) & 0xffffffffL);
+    }
+
+    /**
+     * Resolve the info of the given UID. It is only persisted if the UID has not been
+     * invalidated since the given generation.
+     */
+    private Info resolve(int uid, long generation) {
+        load();
+
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
+            return new Info(uid, null, null, null, null, null, null, 0);
+        }
+
+        // Fetching the package infos is cheap compared to loading labels, so always do it
+        // to check that the persisted info is still current.
+        final IPackageManager ipm = AppGlobals.getPackageManager();
+        final int userId = UserHandle.getUserId(uid);
+        final int count = packages.length;
+        final PackageInfo[] infos = new PackageInfo[count];
+        long stamp = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                infos[i] = ipm.getPackageInfo(packages[i], 0 /* no flags */, userId);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Error while retrieving package info for package " + packages[i]
+                        + ", user " + userId, e);
+            }
+            if (infos[i] != null) {
+                stamp = Math.max(stamp, infos[i].lastUpdateTime);
+            }
+        }
+
+        final Info persisted;
+        synchronized (this) {
+            persisted = mPersisted.get(uid);
+        }
+        if (persisted != null && persisted.stamp == stamp
+                && Arrays.equals(persisted.packages, packages)) {
+            return persisted.withIcon(loadIcon(pm, persisted.iconPackage, packages, infos));
+        }
+
+        final String[] packageLabels = new String[count];
+        String label = null;
+        String labelPackage = null;
+        String iconPackage = null;
+        for (int i = 0; i < count; i++) {
+            packageLabels[i] = packages[i];
+            final ApplicationInfo ai = infos[i] != null ? infos[i].applicationInfo : null;
+            if (ai == null) {
+                continue;
+            }
+            final CharSequence packageLabel = ai.loadLabel(pm);
+            if (packageLabel != null) {
+                packageLabels[i] = packageLabel.toString();
+            }
+            if (iconPackage == null && ai.icon != 0) {
+                iconPackage = packages[i];
+            }
+        }
+        if (count == 1) {
+            if (infos[0] != null) {
+                label = packageLabels[0];
+                labelPackage = packages[0];
+            }
+        } else {
+            // Look for an official name for this UID.
+            for (int i = 0; i < count; i++) {
+                final PackageInfo pi = infos[i];
+                if (pi == null || pi.sharedUserLabel == 0) {
+                    continue;
+                }
+                final CharSequence nm = pm.getText(packages[i], pi.sharedUserLabel,
+                        pi.applicationInfo);
+                if (nm != null) {
+                    label = nm.toString();
+                    labelPackage = packages[i];
+                    if (pi.applicationInfo.icon != 0) {
+                        iconPackage = packages[i];
+                    }
+                    break;
+                }
+            }
+        }
+
+        final Info info = new Info(uid, packages, packageLabels, label, labelPackage,
+                iconPackage, null, stamp);
+        synchronized (this) {
+            if (generation == getGenerationLocked(uid)) {
+                mPersisted.put(uid, info);
+                scheduleSaveLocked();
+            }
+        }
+        return info.withIcon(loadIcon(pm, iconPackage, packages, infos));
+    }
+
+    private static Drawable.ConstantState loadIcon(PackageManager pm, String iconPackage,
+            String[] packages, PackageInfo[] infos) {
+        if (iconPackage == null) {
+            return null;
+        }
+        for (int i = 0; i < packages.length; i++) {
+            if (iconPackage.equals(packages[i]) && infos[i] != null) {
+                final Drawable icon = infos[i].applicationInfo.loadIcon(pm);
+                return icon != null ? icon.getConstantState() : null;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleSaveLocked() {
+        mDirty = true;
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MS);
+    }
+
+    /**
+     * Read the persisted labels, once. Those of another locale are ignored, and so are those
+     * of UIDs invalidated while reading. The file is read without holding this, so that the
+     * main thread is not blocked.
+     */
+    private void load() {
+        synchronized (mLoadLock) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+
+            final int generation;
+            final SparseIntArray uidGenerations;
+            synchronized (this) {
+                generation = mGeneration;
+                uidGenerations = mUidGenerations.clone();
+            }
+
+            final ArrayList<Info> loaded = new ArrayList<Info>();
+            final boolean read = mFile.read(new VersionedRecordFile.Reader() {
+                @Override
+                public void read(DataInputStream in) throws IOException {
+                    if (!Locale.getDefault().toString().equals(in.readUTF())) {
+                        return;
+                    }
+                    final int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        final int uid = in.readInt();
+                        final long stamp = in.readLong();
+                        final int numPackages = in.readInt();
+                        final String[] packages = new String[numPackages];
+                        final String[] packageLabels = new String[numPackages];
+                        for (int j = 0; j < numPackages; j++) {
+                            packages[j] = in.readUTF();
+                            packageLabels[j] = in.readUTF();
+                        }
+                        final String label = VersionedRecordFile.readNullableUTF(in);
+                        final String labelPackage = VersionedRecordFile.readNullableUTF(in);
+                        final String iconPackage = VersionedRecordFile.readNullableUTF(in);
+                        loaded.add(new Info(uid, packages, packageLabels, label,
+                                labelPackage, iconPackage, null, stamp));
+                    }
+                }
+            });
+            if (!read) {
+                loaded.clear();
+            }
+
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                // Infos resolved while reading are more recent than the persisted ones.
+                final ArrayList<Info> resolved = new ArrayList<Info>(mPersisted.values());
+                mPersisted.clear();
+                for (Info info : loaded) {
+                    if (uidGenerations.get(info.uid) == mUidGenerations.get(info.uid)) {
+                        mPersisted.put(info.uid, info);
+                    }
+                }
+                for (Info info : resolved) {
+                    mPersisted.put(info.uid, info);
+                }
+                if (DEBUG) Log.i(TAG, "Loaded " + mPersisted.size() + " labels");
+            }
+        }
+    }
+
+    /**
+     * Write the persisted labels, if they changed. They are copied under the lock and written
+     * without holding it.
+     */
+    private void save() {
+        final String locale;
+        final Info[] infos;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            locale = Locale.getDefault().toString();
+            infos = mPersisted.values().toArray(new Info[mPersisted.size()]);
+        }
+
+        mFile.write(new VersionedRecordFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeUTF(locale);
+                out.writeInt(infos.length);
+                for (Info info : infos) {
+                    out.writeInt(info.uid);
+                    out.writeLong(info.stamp);
+                    out.writeInt(info.packages.length);
+                    for (int j = 0; j < info.packages.length; j++) {
+                        out.writeUTF(info.packages[j]);
+                        out.writeUTF(info.packageLabels[j]);
+                    }
+                    VersionedRecordFile.writeNullableUTF(out, info.label);
+                    VersionedRecordFile.writeNullableUTF(out, info.labelPackage);
+                    VersionedRecordFile.writeNullableUTF(out, info.iconPackage);
+                }
+            }
+        });
+    }
+}
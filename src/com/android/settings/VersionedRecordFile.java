@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A file of records written with {@link DataOutputStream}, replaced atomically and starting
+ * with a format version. A file of another version is ignored, so that bumping the version is
+ * enough to change the format. Used by the on-disk caches of Settings.
+ */
+public class VersionedRecordFile {
+    private static final String TAG = "VersionedRecordFile";
+
+    /**
+     * Reads what follows the version.
+     */
+    public interface Reader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes what follows the version.
+     */
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final AtomicFile mFile;
+    private final int mVersion;
+
+    public VersionedRecordFile(File file, int version) {
+        mFile = new AtomicFile(file);
+        mVersion = version;
+    }
+
+    /**
+     * Read the file, if it exists and has the current version. Must not be called on the main
+     * thread.
+     *
+     * @return false if the file could not be read, in which case the reader may only have
+     *         read part of it and its records should be dropped.
+     */
+    public boolean read(Reader reader) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() == mVersion) {
+                reader.read(in);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            // Nothing written yet
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + mFile.getBaseFile(), e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the file with what the writer writes. The previous file is kept if writing
+     * fails. Must not be called on the main thread.
+     */
+    public boolean write(Writer writer) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(mVersion);
+            writer.write(out);
+            out.flush();
+            mFile.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeNullableUTF(DataOutputStream, String)}.
+     */
+    public static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import com.android.settings.VersionedRecordFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the application entries of {@link ApplicationsState}.
+ *
+ * Keeps the label, normalized label, icon downscaled to the list icon size and last known
+ * sizes of each application, keyed by package name and last update time, so that the list of
+ * applications can be shown fully populated while the sizes are reloaded in the background.
+ * The last update time is the modification time of the APK, which changes with every install
+ * or update. The whole snapshot is ignored when the locale or the screen density changes.
+ */
+class AppEntryCache {
+    static final String TAG = "AppEntryCache";
+    static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "app_entries";
+    private static final int VERSION = 1;
+
+    /**
+     * The cached state of one application.
+     */
+    static class Record {
+        final String packageName;
+        final long lastUpdateTime;
+        final String label;
+        final String normalizedLabel;
+        byte[] iconData;
+
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+
+        Record(String packageName, long lastUpdateTime, String label, String normalizedLabel) {
+            this.packageName = packageName;
+            this.lastUpdateTime = lastUpdateTime;
+            this.label = label;
+            this.normalizedLabel = normalizedLabel;
+        }
+
+        boolean sameAs(Record other) {
+            return other != null
+                    && lastUpdateTime == other.lastUpdateTime
+                    && label.equals(other.label)
+                    && (iconData != null) == (other.iconData != null)
+                    && size == other.size
+                    && internalSize == other.internalSize
+                    && externalSize == other.externalSize
+                    && cacheSize == other.cacheSize
+                    && codeSize == other.codeSize
+                    && dataSize == other.dataSize
+                    && externalCodeSize == other.externalCodeSize
+                    && externalDataSize == other.externalDataSize
+                    && externalCacheSize == other.externalCacheSize;
+        }
+    }
+
+    final Context mContext;
+    final VersionedRecordFile mFile;
+    final int mIconSize;
+
+    // Synchronize on this for the following.
+    final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+    String mLocale;
+    int mDensity;
+    boolean mLoaded;
+
+    AppEntryCache(Context context) {
+        mContext = context;
+        mFile = new VersionedRecordFile(new File(context.getCacheDir(), FILE_NAME), VERSION);
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Read the snapshot from disk, once. Must not be called on the main thread.
+     */
+    synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        final long start = System.currentTimeMillis();
+        final boolean read = mFile.read(new VersionedRecordFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+                mLocale = in.readUTF();
+                mDensity = in.readInt();
+                final int count = in.readInt();
+                for (int i=0; i<count; i++) {
+                    final Record record = new Record(in.readUTF(), in.readLong(),
+                            in.readUTF(), in.readUTF());
+                    record.size = in.readLong();
+                    record.internalSize = in.readLong();
+                    record.externalSize = in.readLong();
+                    record.cacheSize = in.readLong();
+                    record.codeSize = in.readLong();
+                    record.dataSize = in.readLong();
+                    record.externalCodeSize = in.readLong();
+                    record.externalDataSize = in.readLong();
+                    record.externalCacheSize = in.readLong();
+                    final int iconLength = in.readInt();
+                    if (iconLength > 0) {
+                        record.iconData = new byte[iconLength];
+                        in.readFully(record.iconData);
+                    }
+                    mRecords.put(record.packageName, record);
+                }
+            }
+        });
+        if (!read) {
+            mRecords.clear();
+        }
+        if (DEBUG) Log.i(TAG, "Loaded " + mRecords.size() + " entries in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Return the cached state of the given package, or null if there is none or if the
+     * package has been updated since.
+     */
+    synchronized Record get(String packageName, long lastUpdateTime) {
+        final Record record = mRecords.get(packageName);
+        if (record == null || record.lastUpdateTime != lastUpdateTime
+                || lastUpdateTime == 0 || !isConfigCurrentLocked()) {
+            return null;
+        }
+        return record;
+    }
+
+    Drawable getIcon(Record record) {
+        if (record.iconData == null) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(record.iconData, 0,
+                record.iconData.length);
+        return bitmap != null ? new BitmapDrawable(mContext.getResources(), bitmap) : null;
+    }
+
+    /**
+     * Write a new snapshot of the given entries, if anything changed since the last one. Must
+     * not be called on the main thread.
+     */
+    void save(List<ApplicationsState.AppEntry> entries) {
+        final HashMap<String, Record> records = new HashMap<String, Record>();
+        synchronized (this) {
+            final boolean configChanged = !isConfigCurrentLocked();
+            boolean changed = configChanged;
+            for (int i=0; i<entries.size(); i++) {
+                final ApplicationsState.AppEntry entry = entries.get(i);
+                final Record record;
+                final Drawable icon;
+                synchronized (entry) {
+                    if (!entry.mounted || entry.label == null) {
+                        continue;
+                    }
+                    record = new Record(entry.info.packageName, entry.apkFile.lastModified(),
+                            entry.label, entry.getNormalizedLabel());
+                    record.size = entry.size;
+                    record.internalSize = entry.internalSize;
+                    record.externalSize = entry.externalSize;
+                    record.cacheSize = entry.cacheSize;
+                    record.codeSize = entry.codeSize;
+                    record.dataSize = entry.dataSize;
+                    record.externalCodeSize = entry.externalCodeSize;
+                    record.externalDataSize = entry.externalDataSize;
+                    record.externalCacheSize = entry.externalCacheSize;
+                    icon = entry.icon;
+                }
+                final Record previous = mRecords.get(record.packageName);
+                if (previous != null && previous.lastUpdateTime == record.lastUpdateTime
+                        && previous.iconData != null && !configChanged) {
+                    record.iconData = previous.iconData;
+                } else if (icon != null) {
+                    record.iconData = encodeIcon(icon);
+                }
+                if (!record.sameAs(previous)) {
+                    changed = true;
+                }
+                records.put(record.packageName, record);
+            }
+            if (!changed && records.size() == mRecords.size()) {
+                return;
+            }
+            mRecords.clear();
+            mRecords.putAll(records);
+            mLocale = getCurrentLocale();
+            mDensity = getCurrentDensity();
+        }
+
+        final long start = System.currentTimeMillis();
+        final boolean written = mFile.write(new VersionedRecordFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                synchronized (AppEntryCache.this) {
+                    out.writeUTF(mLocale);
+                    out.writeInt(mDensity);
+                }
+                out.writeInt(records.size());
+                for (Record record : records.values()) {
+                    out.writeUTF(record.packageName);
+                    out.writeLong(record.lastUpdateTime);
+                    out.writeUTF(record.label);
+                    out.writeUTF(record.normalizedLabel);
+                    out.writeLong(record.size);
+                    out.writeLong(record.internalSize);
+                    out.writeLong(record.externalSize);
+                    out.writeLong(record.cacheSize);
+                    out.writeLong(record.codeSize);
+                    out.writeLong(record.dataSize);
+                    out.writeLong(record.externalCodeSize);
+                    out.writeLong(record.externalDataSize);
+                    out.writeLong(record.externalCacheSize);
+                    if (record.iconData != null) {
+                        out.writeInt(record.iconData.length);
+                        out.write(record.iconData);
+                    } else {
+                        out.writeInt(0);
+                    }
+                }
+            }
+        });
+        if (DEBUG && written) Log.i(TAG, "Saved " + records.size() + " entries in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private boolean isConfigCurrentLocked() {
+        return getCurrentLocale().equals(mLocale) && getCurrentDensity() == mDensity;
+    }
+
+    private String getCurrentLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    private int getCurrentDensity() {
+        return mContext.getResources().getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Draw the icon at the size it has in the list of applications and compress it. We draw
+     * a new drawable from its constant state as the UI may be using the original one.
+     */
+    private byte[] encodeIcon(Drawable icon) {
+        final Drawable.ConstantState state = icon.getConstantState();
+        if (state == null) {
+            return null;
+        }
+        final Resources res = mContext.getResources();
+        final Drawable drawable = state.newDrawable(res);
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        } else if (width > mIconSize || height > mIconSize) {
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            width = Math.max(1, Math.round(width * scale));
+            height = Math.max(1, Math.round(height * scale));
+        }
+
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(new Canvas(bitmap));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final boolean compressed = bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return compressed ? out.toByteArray() : null;
+    }
+}
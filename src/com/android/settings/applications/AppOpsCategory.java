@@ -16,6 +16,7 @@
 
 package com.android.settings.applications;
 
+import android.app.Fragment;
 import android.app.ListFragment;
 import android.app.LoaderManager;
 import android.content.AsyncTaskLoader;
@@ -106,6 +107,7 @@ public class AppOpsCategory extends ListFragment implements
 
         @Override public void onReceive(Context context, Intent intent) {
             // Tell the loader about the change.
+            mLoader.mState.invalidate();
             mLoader.onContentChanged();
         }
     }
@@ -303,7 +305,12 @@ public class AppOpsCategory extends ListFragment implements
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mState = new AppOpsState(getActivity());
+        Fragment parent = getParentFragment();
+        if (parent instanceof AppOpsSummary) {
+            mState = ((AppOpsSummary) parent).getState();
+        } else {
+            mState = new AppOpsState(getActivity());
+        }
     }
 
     @Override public void onActivityCreated(Bundle savedInstanceState) {
@@ -35,6 +35,7 @@ import com.android.settings.R;
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -52,6 +53,31 @@ public class AppOpsState {
 
     List<AppOpEntry> mApps;
 
+    /**
+     * Metadata of a package, shared by the entries of all the templates. It is only
+     * reused as long as the package has not been updated.
+     */
+    static class PackageRecord {
+        final ApplicationInfo info;
+        final long lastUpdateTime;
+        String label;
+        Drawable.ConstantState icon;
+
+        PackageRecord(ApplicationInfo _info, long _lastUpdateTime) {
+            info = _info;
+            lastUpdateTime = _lastUpdateTime;
+        }
+    }
+
+    // Synchronize on this for the following.
+    final HashMap<String, PackageRecord> mPackageRecords = new HashMap<String, PackageRecord>();
+    String mPackageRecordsLocale;
+
+    // Entries of all the templates, built at once by buildStates() and handed out until
+    // invalidate() is called.
+    final Object mStatesLock = new Object();
+    HashMap<OpsTemplate, List<AppOpEntry>> mStates;
+
     public AppOpsState(Context context) {
         mContext = context;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
@@ -74,6 +100,23 @@ public class AppOpsState {
             showPerms = src.createBooleanArray();
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof OpsTemplate)) {
+                return false;
+            }
+            final OpsTemplate other = (OpsTemplate) o;
+            return Arrays.equals(ops, other.ops) && Arrays.equals(showPerms, other.showPerms);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(ops) + Arrays.hashCode(showPerms);
+        }
+
         @Override
         public int describeContents() {
             return 0;
@@ -221,6 +264,7 @@ public class AppOpsState {
         private String mLabel;
         private Drawable mIcon;
         private boolean mMounted;
+        private PackageRecord mRecord;
 
         public AppEntry(AppOpsState state, ApplicationInfo info) {
             mState = state;
@@ -228,6 +272,15 @@ public class AppOpsState {
             mApkFile = new File(info.sourceDir);
         }
 
+        AppEntry(AppOpsState state, PackageRecord record) {
+            this(state, record.info);
+            mRecord = record;
+            if (record.label != null) {
+                mLabel = record.label;
+                mMounted = true;
+            }
+        }
+
         public void addOp(AppOpEntry entry, AppOpsManager.OpEntry op) {
             mOps.put(op.getOp(), op);
             mOpSwitches.put(AppOpsManager.opToSwitch(op.getOp()), entry);
@@ -251,8 +304,15 @@ public class AppOpsState {
 
         public Drawable getIcon() {
             if (mIcon == null) {
+                if (mRecord != null && mRecord.icon != null) {
+                    mIcon = mRecord.icon.newDrawable(mState.mContext.getResources());
+                    return mIcon;
+                }
                 if (mApkFile.exists()) {
                     mIcon = mInfo.loadIcon(mState.mPm);
+                    if (mRecord != null) {
+                        mRecord.icon = mIcon.getConstantState();
+                    }
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -462,32 +522,177 @@ public class AppOpsState {
         entries.add(entry);
     }
 
+    /**
+     * Return the entries of the given template. The entries of all the templates are built
+     * together the first time and handed out until {@link #invalidate()} is called, so that
+     * switching between templates does not query and resolve every package again.
+     */
     public List<AppOpEntry> buildState(OpsTemplate tpl) {
-        return buildState(tpl, 0, null);
+        synchronized (mStatesLock) {
+            if (mStates == null) {
+                mStates = buildStates(ALL_TEMPLATES);
+            }
+            List<AppOpEntry> entries = mStates.get(tpl);
+            if (entries == null) {
+                entries = buildStates(new OpsTemplate[] { tpl }).get(tpl);
+                mStates.put(tpl, entries);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Forget the entries built by {@link #buildState(OpsTemplate)}, for instance because
+     * packages changed or ops were used since.
+     */
+    public void invalidate() {
+        synchronized (mStatesLock) {
+            mStates = null;
+        }
+    }
+
+    /**
+     * Query the ops and permission holders of all the given templates at once and slice them
+     * per template.
+     */
+    private HashMap<OpsTemplate, List<AppOpEntry>> buildStates(OpsTemplate[] templates) {
+        final ArrayList<Integer> allOps = new ArrayList<Integer>();
+        final ArrayList<String> allPerms = new ArrayList<String>();
+        for (OpsTemplate tpl : templates) {
+            for (int i=0; i<tpl.ops.length; i++) {
+                if (!allOps.contains(tpl.ops[i])) {
+                    allOps.add(tpl.ops[i]);
+                }
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && !allPerms.contains(perm)) {
+                        allPerms.add(perm);
+                    }
+                }
+            }
+        }
+        final int[] opsArray = new int[allOps.size()];
+        for (int i=0; i<opsArray.length; i++) {
+            opsArray[i] = allOps.get(i);
+        }
+        final String[] permsArray = new String[allPerms.size()];
+        allPerms.toArray(permsArray);
+
+        final List<AppOpsManager.PackageOps> allPkgs = mAppOps.getPackagesForOps(opsArray);
+        final List<PackageInfo> apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
+        final HashMap<String, PackageInfo> pkgInfos = new HashMap<String, PackageInfo>();
+        for (int i=0; i<apps.size(); i++) {
+            pkgInfos.put(apps.get(i).packageName, apps.get(i));
+        }
+
+        final HashMap<OpsTemplate, List<AppOpEntry>> states
+                = new HashMap<OpsTemplate, List<AppOpEntry>>();
+        for (OpsTemplate tpl : templates) {
+            states.put(tpl, buildState(tpl, null, sliceOps(allPkgs, tpl.ops), apps, pkgInfos));
+        }
+        return states;
+    }
+
+    /**
+     * Return the ops of the given packages restricted to the given ops, in the order
+     * getPackagesForOps() would have returned them.
+     */
+    private static List<AppOpsManager.PackageOps> sliceOps(List<AppOpsManager.PackageOps> pkgs,
+            int[] ops) {
+        final List<AppOpsManager.PackageOps> result = new ArrayList<AppOpsManager.PackageOps>();
+        if (pkgs == null) {
+            return result;
+        }
+        for (int i=0; i<pkgs.size(); i++) {
+            AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+            List<AppOpsManager.OpEntry> opEntries = null;
+            for (int j=0; j<ops.length; j++) {
+                for (int k=0; k<pkgOps.getOps().size(); k++) {
+                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(k);
+                    if (opEntry.getOp() == ops[j]) {
+                        if (opEntries == null) {
+                            opEntries = new ArrayList<AppOpsManager.OpEntry>();
+                        }
+                        opEntries.add(opEntry);
+                    }
+                }
+            }
+            if (opEntries != null) {
+                result.add(new AppOpsManager.PackageOps(pkgOps.getPackageName(),
+                        pkgOps.getUid(), opEntries));
+            }
+        }
+        return result;
     }
 
     private AppEntry getAppEntry(final Context context, final HashMap<String, AppEntry> appEntries,
-            final String packageName, ApplicationInfo appInfo) {
+            final String packageName, PackageInfo pkgInfo) {
         AppEntry appEntry = appEntries.get(packageName);
         if (appEntry == null) {
-            if (appInfo == null) {
-                try {
-                    appInfo = mPm.getApplicationInfo(packageName,
-                            PackageManager.GET_DISABLED_COMPONENTS
-                            | PackageManager.GET_UNINSTALLED_PACKAGES);
-                } catch (PackageManager.NameNotFoundException e) {
-                    Log.w(TAG, "Unable to find info for package " + packageName);
-                    return null;
-                }
+            PackageRecord record = getPackageRecord(packageName, pkgInfo);
+            if (record == null) {
+                return null;
             }
-            appEntry = new AppEntry(this, appInfo);
+            appEntry = new AppEntry(this, record);
             appEntry.loadLabel(context);
             appEntries.put(packageName, appEntry);
         }
         return appEntry;
     }
 
+    /**
+     * Return the metadata of the given package, resolving it and loading its label only if
+     * it is not known yet or the package was updated since.
+     */
+    private PackageRecord getPackageRecord(String packageName, PackageInfo pkgInfo) {
+        if (pkgInfo == null) {
+            try {
+                pkgInfo = mPm.getPackageInfo(packageName,
+                        PackageManager.GET_DISABLED_COMPONENTS
+                        | PackageManager.GET_UNINSTALLED_PACKAGES);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Unable to find info for package " + packageName);
+                return null;
+            }
+        }
+        final String locale = mContext.getResources().getConfiguration().locale.toString();
+        synchronized (mPackageRecords) {
+            if (!locale.equals(mPackageRecordsLocale)) {
+                mPackageRecords.clear();
+                mPackageRecordsLocale = locale;
+            }
+            PackageRecord record = mPackageRecords.get(packageName);
+            if (record != null && record.lastUpdateTime == pkgInfo.lastUpdateTime) {
+                return record;
+            }
+        }
+        final PackageRecord record = new PackageRecord(pkgInfo.applicationInfo,
+                pkgInfo.lastUpdateTime);
+        if (new File(record.info.sourceDir).exists()) {
+            CharSequence label = record.info.loadLabel(mPm);
+            record.label = label != null ? label.toString() : record.info.packageName;
+        }
+        synchronized (mPackageRecords) {
+            mPackageRecords.put(packageName, record);
+        }
+        return record;
+    }
+
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName) {
+        List<AppOpsManager.PackageOps> pkgs = mAppOps.getOpsForPackage(uid, packageName,
+                tpl.ops);
+        List<PackageInfo> apps = new ArrayList<PackageInfo>();
+        try {
+            PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+            apps.add(pi);
+        } catch (NameNotFoundException e) {
+        }
+        return buildState(tpl, packageName, pkgs, apps, null);
+    }
+
+    private List<AppOpEntry> buildState(OpsTemplate tpl, String packageName,
+            List<AppOpsManager.PackageOps> pkgs, List<PackageInfo> apps,
+            HashMap<String, PackageInfo> pkgInfos) {
         final Context context = mContext;
 
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
@@ -507,17 +712,11 @@ public class AppOpsState {
             }
         }
 
-        List<AppOpsManager.PackageOps> pkgs;
-        if (packageName != null) {
-            pkgs = mAppOps.getOpsForPackage(uid, packageName, tpl.ops);
-        } else {
-            pkgs = mAppOps.getPackagesForOps(tpl.ops);
-        }
-
         if (pkgs != null) {
             for (int i=0; i<pkgs.size(); i++) {
                 AppOpsManager.PackageOps pkgOps = pkgs.get(i);
-                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null);
+                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(),
+                        pkgInfos != null ? pkgInfos.get(pkgOps.getPackageName()) : null);
                 if (appEntry == null) {
                     continue;
                 }
@@ -529,23 +728,9 @@ public class AppOpsState {
             }
         }
 
-        List<PackageInfo> apps;
-        if (packageName != null) {
-            apps = new ArrayList<PackageInfo>();
-            try {
-                PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-                apps.add(pi);
-            } catch (NameNotFoundException e) {
-            }
-        } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
-            apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
-        }
         for (int i=0; i<apps.size(); i++) {
             PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo);
+            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName, appInfo);
             if (appEntry == null) {
                 continue;
             }
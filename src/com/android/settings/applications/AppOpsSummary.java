@@ -48,6 +48,13 @@ public class AppOpsSummary extends Fragment {
 
     int mCurPos;
 
+    // Shared by the categories, so that the ops of all the templates are only loaded once.
+    AppOpsState mState;
+
+    AppOpsState getState() {
+        return mState;
+    }
+
     class MyPagerAdapter extends FragmentPagerAdapter implements ViewPager.OnPageChangeListener {
 
         public MyPagerAdapter(FragmentManager fm) {
@@ -86,6 +93,20 @@ public class AppOpsSummary extends Fragment {
         }
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mState = new AppOpsState(getActivity());
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        // Ops may have been used or changed while we were away.  This runs before the
+        // categories start loading.
+        mState.invalidate();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         // initialize the inflater
@@ -30,7 +30,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -59,6 +63,15 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Maximum number of package sizes being computed at the same time.
+    static final int MAX_COMPUTING_SIZES = 4;
+    // A size request that did not complete after this long is considered lost.
+    static final long SIZE_LOAD_TIMEOUT = 20*1000;
+    // Size changes are published to the sessions at most this often.
+    static final long SIZE_CHANGED_BATCH_DELAY = 100;
+    // Number of recently shown entries whose size is computed first.
+    static final int MAX_PRIORITY_SIZES = 32;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -123,6 +136,26 @@ public class ApplicationsState {
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        AppEntry(ApplicationInfo info, long id, AppEntryCache.Record cached) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.mounted = true;
+            this.label = cached.label;
+            this.normalizedLabel = cached.normalizedLabel;
+            this.size = cached.size;
+            this.internalSize = cached.internalSize;
+            this.externalSize = cached.externalSize;
+            this.cacheSize = cached.cacheSize;
+            this.codeSize = cached.codeSize;
+            this.dataSize = cached.dataSize;
+            this.externalCodeSize = cached.externalCodeSize;
+            this.externalDataSize = cached.externalDataSize;
+            this.externalCacheSize = cached.externalCacheSize;
+            // The cached size is only shown until the real one is loaded.
+            this.sizeStale = true;
+        }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
@@ -160,6 +193,27 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Immutable view of the applications and of their entries.  A new one is
+     * published each time they change, so that rebuilding lists and looking up
+     * entries never wait for the loader thread.  The entries themselves are not
+     * copied: synchronize on an entry to access its mutable state.
+     */
+    static class EntriesSnapshot {
+        final List<ApplicationInfo> applications;
+        final Map<String, AppEntry> entriesMap;
+        final List<AppEntry> entries;
+
+        EntriesSnapshot(List<ApplicationInfo> applications, Map<String, AppEntry> entriesMap,
+                List<AppEntry> entries) {
+            this.applications = Collections.unmodifiableList(
+                    new ArrayList<ApplicationInfo>(applications));
+            this.entriesMap = Collections.unmodifiableMap(
+                    new HashMap<String, AppEntry>(entriesMap));
+            this.entries = Collections.unmodifiableList(new ArrayList<AppEntry>(entries));
+        }
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
         private final Collator sCollator = Collator.getInstance();
         @Override
@@ -266,26 +320,45 @@ public class ApplicationsState {
     final Context mContext;
     final PackageManager mPm;
     final int mRetrieveFlags;
+    final AppEntryCache mEntryCache;
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  The lock is only held for bookkeeping,
+    // never while loading anything.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
     final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
     boolean mSessionsChanged;
 
+    // Copy of the above published each time they change.  Read it without
+    // any lock.
+    volatile EntriesSnapshot mSnapshot = new EntriesSnapshot(mApplications, mEntriesMap,
+            mAppEntries);
+
+    final AtomicLong mCurId = new AtomicLong(1);
+
+    // Packages whose size is being computed.  Synchronize on this set itself
+    // to access it.
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+
+    // Packages whose size changed since the last MSG_PACKAGE_SIZE_CHANGED.
+    // Synchronize on this list itself to access it.
+    final ArrayList<String> mChangedSizePkgs = new ArrayList<String>();
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    // Packages recently shown to the user, most recent first.  Synchronize
+    // on this list itself to access it.
+    final ArrayList<String> mPrioritySizePkgs = new ArrayList<String>();
+
     /**
      * Receives notifications when applications are added/removed.
      */
@@ -387,9 +460,16 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
+                    ArrayList<String> pkgs;
+                    synchronized (mChangedSizePkgs) {
+                        pkgs = new ArrayList<String>(mChangedSizePkgs);
+                        mChangedSizePkgs.clear();
+                    }
+                    for (int j=0; j<pkgs.size(); j++) {
+                        for (int i=0; i<mActiveSessions.size(); i++) {
+                            mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
+                                    pkgs.get(j));
+                        }
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
@@ -426,6 +506,7 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mEntryCache = new AppEntryCache(mContext);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -563,24 +644,46 @@ public class ApplicationsState {
                 filter.init();
             }
             
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
+            EntriesSnapshot snapshot = mSnapshot;
+            List<ApplicationInfo> apps = snapshot.applications;
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
+            ArrayList<AppEntry> newEntries = null;
             if (DEBUG) Log.i(TAG, "Rebuilding...");
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = snapshot.entriesMap.get(info.packageName);
+                    if (entry == null) {
+                        // Built without the lock, and added along with the others below.
+                        entry = createEntry(info);
+                        if (newEntries == null) {
+                            newEntries = new ArrayList<AppEntry>();
+                        }
+                        newEntries.add(entry);
+                    }
+                    synchronized (entry) {
+                        if (entry.info != info) {
+                            entry.info = info;
+                        }
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
+                }
+            }
+
+            if (newEntries != null) {
+                synchronized (mEntriesMap) {
+                    for (int i=0; i<newEntries.size(); i++) {
+                        AppEntry newEntry = newEntries.get(i);
+                        AppEntry entry = putEntryLocked(newEntry);
+                        if (entry != newEntry) {
+                            // Another thread added one in the meantime.
+                            filteredApps.set(filteredApps.indexOf(newEntry), entry);
+                        }
+                    }
+                    publishSnapshotLocked();
                 }
             }
 
@@ -661,10 +764,15 @@ public class ApplicationsState {
             }
             final AppEntry entry = mEntriesMap.get(info.packageName);
             if (entry != null) {
-                entry.info = info;
+                synchronized (entry) {
+                    entry.info = info;
+                }
             }
         }
-        mCurComputingSizePkg = null;
+        publishSnapshotLocked();
+        synchronized (mComputingSizePkgs) {
+            mComputingSizePkgs.clear();
+        }
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -690,22 +798,23 @@ public class ApplicationsState {
         }
     }
 
+    void publishSnapshotLocked() {
+        mSnapshot = new EntriesSnapshot(mApplications, mEntriesMap, mAppEntries);
+    }
+
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
+        EntriesSnapshot snapshot = mSnapshot;
+        AppEntry entry = snapshot.entriesMap.get(packageName);
+        if (entry == null) {
+            for (int i=0; i<snapshot.applications.size(); i++) {
+                ApplicationInfo info = snapshot.applications.get(i);
+                if (packageName.equals(info.packageName)) {
+                    entry = getOrCreateEntry(info);
+                    break;
                 }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return entry;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -717,26 +826,39 @@ public class ApplicationsState {
         }
     }
     
-    void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
+    /**
+     * Have the size of the given entry computed before the others, typically because it is
+     * currently shown.  Can be called on any thread.
+     */
+    void prioritizeSize(AppEntry entry) {
+        if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+            return;
+        }
+        synchronized (mPrioritySizePkgs) {
+            String pkgName = entry.info.packageName;
+            if (mPrioritySizePkgs.size() > 0 && mPrioritySizePkgs.get(0).equals(pkgName)) {
+                return;
+            }
+            mPrioritySizePkgs.remove(pkgName);
+            mPrioritySizePkgs.add(0, pkgName);
+            if (mPrioritySizePkgs.size() > MAX_PRIORITY_SIZES) {
+                mPrioritySizePkgs.remove(mPrioritySizePkgs.size() - 1);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        }
+    }
+
+    void requestSize(String packageName) {
+        AppEntry entry = mSnapshot.entriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        List<AppEntry> entries = mSnapshot.entries;
+        for (int i=entries.size()-1; i>=0; i--) {
+            sum += entries.get(i).cacheSize;
         }
         return sum;
     }
@@ -751,40 +873,47 @@ public class ApplicationsState {
     }
 
     void addPackage(String pkgName) {
+        if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
+        if (!mResumed) {
+            // If we are not resumed, we will do a full query the
+            // next time we resume, so there is no reason to do work
+            // here.
+            return;
+        }
+        ApplicationInfo info;
         try {
-            synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
-                if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
-                if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
-                }
-                if (indexOfApplicationInfoLocked(pkgName) >= 0) {
-                    if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
-                    return;
-                }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
-                if (!info.enabled) {
-                    if (info.enabledSetting
-                            != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
-                    }
-                    mHaveDisabledApps = true;
-                }
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
-                }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
-            }
+            info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
         } catch (NameNotFoundException e) {
+            return;
+        }
+        if (!info.enabled) {
+            if (info.enabledSetting != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
+                return;
+            }
+        }
+        synchronized (mEntriesMap) {
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
+            if (!mResumed) {
+                if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
+                return;
+            }
+            if (indexOfApplicationInfoLocked(pkgName) >= 0) {
+                if (DEBUG) Log.i(TAG, "Package already exists!");
+                if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
+                return;
+            }
+            if (!info.enabled) {
+                mHaveDisabledApps = true;
+            }
+            mApplications.add(info);
+            publishSnapshotLocked();
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+            }
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
         }
     }
 
@@ -811,6 +940,7 @@ public class ApplicationsState {
                         }
                     }
                 }
+                publishSnapshotLocked();
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
@@ -824,16 +954,65 @@ public class ApplicationsState {
         addPackage(pkgName);
     }
     
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
+    /**
+     * Return the entry of the given application, creating it if needed.  The
+     * entry is built without holding the mEntriesMap lock, which is only taken
+     * to add it.
+     */
+    AppEntry getOrCreateEntry(ApplicationInfo info) {
+        AppEntry entry = mSnapshot.entriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+            entry = createEntry(info);
+            synchronized (mEntriesMap) {
+                entry = putEntryLocked(entry);
+                publishSnapshotLocked();
+            }
+        } else {
+            synchronized (entry) {
+                if (entry.info != info) {
+                    entry.info = info;
+                }
+            }
+        }
+        return entry;
+    }
+
+    AppEntry createEntry(ApplicationInfo info) {
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        AppEntryCache.Record cached = mEntryCache.get(info.packageName,
+                new File(info.sourceDir).lastModified());
+        if (cached == null) {
+            return new AppEntry(mContext, info, mCurId.getAndIncrement());
+        }
+        AppEntry entry = new AppEntry(info, mCurId.getAndIncrement(), cached);
+        entry.icon = mEntryCache.getIcon(cached);
+        entry.sizeStr = getSizeStr(entry.size);
+        entry.internalSizeStr = getSizeStr(entry.internalSize);
+        entry.externalSizeStr = getSizeStr(entry.externalSize);
+        return entry;
+    }
+
+    /**
+     * Add a new entry, unless another thread added one for the same package in
+     * the meantime, in which case that one is returned.  Entries of packages
+     * removed while they were being built are dropped.  The caller must
+     * publish a new snapshot.
+     */
+    AppEntry putEntryLocked(AppEntry newEntry) {
+        AppEntry entry = mEntriesMap.get(newEntry.info.packageName);
+        if (entry == null) {
+            if (indexOfApplicationInfoLocked(newEntry.info.packageName) < 0) {
+                return newEntry;
+            }
+            mEntriesMap.put(newEntry.info.packageName, newEntry);
+            mAppEntries.add(newEntry);
+            return newEntry;
+        }
+        synchronized (entry) {
+            if (entry.info != newEntry.info) {
+                entry.info = newEntry.info;
+            }
         }
         return entry;
     }
@@ -878,55 +1057,59 @@ public class ApplicationsState {
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
+                AppEntry entry = mSnapshot.entriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
                         }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                    }
+                }
+                if (sizeChanged) {
+                    synchronized (mChangedSizePkgs) {
+                        if (!mChangedSizePkgs.contains(stats.packageName)) {
+                            mChangedSizePkgs.add(stats.packageName);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                        mMainHandler.sendEmptyMessageDelayed(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                                SIZE_CHANGED_BATCH_DELAY);
+                    }
+                }
+                synchronized (mComputingSizePkgs) {
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            || mComputingSizePkgs.isEmpty()) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
             }
         };
@@ -935,8 +1118,28 @@ public class ApplicationsState {
             super(looper);
         }
 
+        boolean needsSizeLocked(AppEntry entry) {
+            return (entry.size == SIZE_UNKNOWN || entry.sizeStale)
+                    && !mComputingSizePkgs.contains(entry.info.packageName);
+        }
+
+        void startComputingSizeLocked(AppEntry entry, long now) {
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.add(entry.info.packageName);
+            mPm.getPackageSizeInfo(entry.info.packageName, mStatsObserver);
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            // The snapshot of the entries must be there before any entry gets created.
+            mEntryCache.load();
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -955,23 +1158,31 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
-                                mRunning = true;
-                                Message m = mMainHandler.obtainMessage(
-                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                mMainHandler.sendMessage(m);
-                            }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                    // Build the entries without the lock, then add them all at once.
+                    EntriesSnapshot snapshot = mSnapshot;
+                    ArrayList<AppEntry> newEntries = new ArrayList<AppEntry>();
+                    for (int i=0; i<snapshot.applications.size() && newEntries.size()<6; i++) {
+                        if (!mRunning) {
+                            mRunning = true;
+                            Message m = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                            mMainHandler.sendMessage(m);
+                        }
+                        ApplicationInfo info = snapshot.applications.get(i);
+                        if (snapshot.entriesMap.get(info.packageName) == null) {
+                            newEntries.add(createEntry(info));
+                        }
+                    }
+                    int numDone = newEntries.size();
+                    if (numDone > 0) {
+                        synchronized (mEntriesMap) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
+                            for (int i=0; i<numDone; i++) {
+                                putEntryLocked(newEntries.get(i));
                             }
+                            publishSnapshotLocked();
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
                     if (numDone >= 6) {
@@ -982,25 +1193,22 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    List<AppEntry> entries = mSnapshot.entries;
+                    for (int i=0; i<entries.size() && numDone<2; i++) {
+                        AppEntry entry = entries.get(i);
+                        if (entry.icon == null || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1014,42 +1222,65 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
+                    List<AppEntry> entriesToSave = null;
+                    EntriesSnapshot snapshot = mSnapshot;
+                    synchronized (mComputingSizePkgs) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        long now = SystemClock.uptimeMillis();
+                        Iterator<String> it = mComputingSizePkgs.iterator();
+                        while (it.hasNext()) {
+                            AppEntry entry = snapshot.entriesMap.get(it.next());
+                            if (entry == null
+                                    || entry.sizeLoadStart < (now-SIZE_LOAD_TIMEOUT)) {
+                                it.remove();
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                        // Entries recently shown to the user go first.
+                        synchronized (mPrioritySizePkgs) {
+                            it = mPrioritySizePkgs.iterator();
+                            while (it.hasNext()
+                                    && mComputingSizePkgs.size()<MAX_COMPUTING_SIZES) {
+                                AppEntry entry = snapshot.entriesMap.get(it.next());
+                                if (entry != null && needsSizeLocked(entry)) {
+                                    startComputingSizeLocked(entry, now);
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                it.remove();
                             }
                         }
+                        for (int i=0; i<snapshot.entries.size()
+                                && mComputingSizePkgs.size()<MAX_COMPUTING_SIZES; i++) {
+                            AppEntry entry = snapshot.entries.get(i);
+                            if (needsSizeLocked(entry)) {
+                                startComputingSizeLocked(entry, now);
+                            }
+                        }
+
+                        if (mComputingSizePkgs.size() > 0) {
+                            // Come back if some requests never complete.
+                            removeMessages(MSG_LOAD_SIZES);
+                            sendEmptyMessageDelayed(MSG_LOAD_SIZES, SIZE_LOAD_TIMEOUT);
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
+                        if (mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                            // Deliver the last sizes before saying that they are all there.
+                            mMainHandler.removeMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED);
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_SIZE_CHANGED);
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
+                            entriesToSave = snapshot.entries;
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (entriesToSave != null) {
+                        mEntryCache.save(entriesToSave);
+                    }
                 } break;
             }
         }
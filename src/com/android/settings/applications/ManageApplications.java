@@ -804,6 +804,7 @@ public class ManageApplications extends Fragment implements
 
             // Bind the data efficiently with the holder
             ApplicationsState.AppEntry entry = mEntries.get(position);
+            mState.prioritizeSize(entry);
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
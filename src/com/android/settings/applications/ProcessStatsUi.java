@@ -19,6 +19,7 @@ package com.android.settings.applications;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
@@ -47,6 +48,7 @@ import com.android.settings.Utils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -90,6 +92,33 @@ public class ProcessStatsUi extends PreferenceFragment
 
     private static ProcessStats sStatsXfer;
 
+    /**
+     * Parsed stats of one duration, as loaded at a given time.
+     */
+    static final class CachedStats {
+        final ProcessStats mStats;
+        final int mMemState;
+        final long mLoadTime;
+
+        CachedStats(ProcessStats stats, int memState, long loadTime) {
+            mStats = stats;
+            mMemState = memState;
+            mLoadTime = loadTime;
+        }
+    }
+
+    // Parsed stats are reused for this long, unless the user asks for a refresh.
+    private static final long MAX_CACHED_STATS_AGE = 5*60*1000;
+
+    // Parsed stats of each duration, kept across instances so that switching
+    // between durations or coming back to this screen does not read them again.
+    // There is at most one entry per duration of the menu. Entries are softly
+    // referenced, so that the parsed stats can be reclaimed once the screen is
+    // gone, and expired ones are dropped on each insert.
+    // Synchronize on it to access it.
+    private static final SparseArray<SoftReference<CachedStats>> sStatsCache =
+            new SparseArray<SoftReference<CachedStats>>();
+
     IProcessStats mProcessStats;
     UserManager mUm;
     ProcessStats mStats;
@@ -112,6 +141,8 @@ public class ProcessStatsUi extends PreferenceFragment
     private PreferenceGroup mAppListGroup;
     private Preference mMemStatusPref;
 
+    private LoadStatsTask mLoadTask;
+
     long mMaxWeight;
     long mTotalTime;
 
@@ -172,6 +203,10 @@ public class ProcessStatsUi extends PreferenceFragment
     @Override
     public void onPause() {
         super.onPause();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
     }
 
     @Override
@@ -310,6 +345,9 @@ public class ProcessStatsUi extends PreferenceFragment
         switch (id) {
             case MENU_STATS_REFRESH:
                 mStats = null;
+                synchronized (sStatsCache) {
+                    sStatsCache.clear();
+                }
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -384,7 +422,15 @@ public class ProcessStatsUi extends PreferenceFragment
         updateMenus();
 
         if (mStats == null || mLastDuration != mDuration) {
-            load();
+            final CachedStats cached = getCachedStats(mDuration);
+            if (cached == null) {
+                // We will come back here once the stats are loaded.
+                startLoading();
+                return;
+            }
+            mLastDuration = mDuration;
+            mStats = cached.mStats;
+            mMemState = cached.mMemState;
         }
 
         int[] stats;
@@ -783,23 +829,100 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     }
 
-    private void load() {
+    private static CachedStats getCachedStats(long duration) {
+        synchronized (sStatsCache) {
+            final SoftReference<CachedStats> ref =
+                    sStatsCache.get((int) (duration / DURATION_QUANTUM));
+            final CachedStats cached = ref != null ? ref.get() : null;
+            if (cached != null && !isExpired(cached, SystemClock.elapsedRealtime())) {
+                return cached;
+            }
+            return null;
+        }
+    }
+
+    private static void putCachedStats(long duration, CachedStats cached) {
+        synchronized (sStatsCache) {
+            final long now = SystemClock.elapsedRealtime();
+            for (int i = sStatsCache.size() - 1; i >= 0; i--) {
+                final CachedStats other = sStatsCache.valueAt(i).get();
+                if (other == null || isExpired(other, now)) {
+                    sStatsCache.removeAt(i);
+                }
+            }
+            sStatsCache.put((int) (duration / DURATION_QUANTUM),
+                    new SoftReference<CachedStats>(cached));
+        }
+    }
+
+    private static boolean isExpired(CachedStats cached, long now) {
+        return now - cached.mLoadTime >= MAX_CACHED_STATS_AGE;
+    }
+
+    private void startLoading() {
+        if (mLoadTask != null) {
+            if (mLoadTask.mDuration == mDuration) {
+                return;
+            }
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadStatsTask(mDuration);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Reads and parses the stats of a duration in the background, then stores them in the
+     * cache and refreshes the UI with them.
+     */
+    private class LoadStatsTask extends AsyncTask<Void, Void, CachedStats> {
+        final long mDuration;
+
+        LoadStatsTask(long duration) {
+            mDuration = duration;
+        }
+
+        @Override
+        protected CachedStats doInBackground(Void... params) {
+            final CachedStats cached = load(mProcessStats, mDuration);
+            if (cached != null) {
+                putCachedStats(mDuration, cached);
+            }
+            return cached;
+        }
+
+        @Override
+        protected void onPostExecute(CachedStats cached) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            if (cached == null || !isAdded()) {
+                return;
+            }
+            if (mDuration == ProcessStatsUi.this.mDuration) {
+                refreshStats();
+            }
+        }
+    }
+
+    private static CachedStats load(IProcessStats processStats, long duration) {
         try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
+            final long loadTime = SystemClock.elapsedRealtime();
+            final int memState = processStats.getCurrentMemoryState();
+            ParcelFileDescriptor pfd = processStats.getStatsOverTime(duration);
+            ProcessStats stats = new ProcessStats(false);
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
+            stats.read(is);
             try {
                 is.close();
             } catch (IOException e) {
             }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
             }
+            return new CachedStats(stats, memState, loadTime);
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException:", e);
         }
+        return null;
     }
 }
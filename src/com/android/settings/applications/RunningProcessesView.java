@@ -178,7 +178,8 @@ public class RunningProcessesView extends FrameLayout
                     // their labels for performance reasons.  Do it now.
                     RunningState.MergedItem mergedItem = (RunningState.MergedItem)item;
                     if (mergedItem.mProcess != null) {
-                        ((RunningState.MergedItem)item).mProcess.ensureLabel(pm);
+                        ((RunningState.MergedItem)item).mProcess.ensureLabel(
+                                rootView.getContext(), pm);
                         item.mPackageInfo = ((RunningState.MergedItem)item).mProcess.mPackageInfo;
                         item.mDisplayLabel = ((RunningState.MergedItem)item).mProcess.mDisplayLabel;
                     }
@@ -17,6 +17,7 @@
 package com.android.settings.applications;
 
 import com.android.settings.R;
+import com.android.settings.UidLabelCache;
 import com.android.settings.Utils;
 
 import android.app.ActivityManager;
@@ -25,7 +26,6 @@ import android.app.ActivityThread;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
@@ -70,6 +70,10 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // While the running services and processes stay the same, the delay between two
+    // updates doubles up to this.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -138,6 +142,11 @@ public class RunningState {
 
     int mSequence = 0;
 
+    // Fingerprint of the running services and processes the current items were
+    // built from, see computeFingerprint().
+    long mFingerprint;
+    boolean mHaveFingerprint;
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -204,6 +213,7 @@ public class RunningState {
     boolean mResumed;
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
+    long mUpdateDelay = CONTENTS_UPDATE_DELAY;
 
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
@@ -237,12 +247,26 @@ public class RunningState {
                             return;
                         }
                     }
-                    Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
-                    mHandler.sendMessage(cmd);
+                    final int what = update(mApplicationContext, mAm);
+                    if (what != OnRefreshUiListener.REFRESH_TIME) {
+                        Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
+                        cmd.arg1 = what;
+                        mHandler.sendMessage(cmd);
+                    }
+                    final long delay;
+                    synchronized (mLock) {
+                        // Poll less often while nothing is starting or stopping.
+                        if (what == OnRefreshUiListener.REFRESH_STRUCTURE) {
+                            mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                        } else {
+                            mUpdateDelay = Math.min(mUpdateDelay * 2,
+                                    MAX_CONTENTS_UPDATE_DELAY);
+                        }
+                        delay = mUpdateDelay;
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -257,9 +281,7 @@ public class RunningState {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                    mNextUpdate = Math.max(mNextUpdate, msg.arg1);
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
@@ -374,7 +396,7 @@ public class RunningState {
             mProcessName = processName;
         }
         
-        void ensureLabel(PackageManager pm) {
+        void ensureLabel(Context context, PackageManager pm) {
             if (mLabel != null) {
                 return;
             }
@@ -392,41 +414,22 @@ public class RunningState {
             }
             
             // If we couldn't get information about the overall
-            // process, try to find something about the uid.
-            String[] pkgs = pm.getPackagesForUid(mUid);
-            
-            // If there is one package with this uid, that is what we want.
-            if (pkgs.length == 1) {
+            // process, try to find something about the uid: the label of
+            // its only package, or the official name of its packages.
+            final UidLabelCache.Info info = UidLabelCache.getInstance(context).get(mUid);
+            final String[] pkgs = info.packages;
+            if (info.label != null) {
                 try {
-                    ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
+                    ApplicationInfo ai = pm.getApplicationInfo(info.labelPackage,
                             PackageManager.GET_UNINSTALLED_PACKAGES);
-                    mDisplayLabel = ai.loadLabel(pm);
-                    mLabel = mDisplayLabel.toString();
+                    mDisplayLabel = info.label;
+                    mLabel = info.label;
                     mPackageInfo = ai;
                     return;
                 } catch (PackageManager.NameNotFoundException e) {
                 }
             }
             
-            // If there are multiple, see if one gives us the official name
-            // for this uid.
-            for (String name : pkgs) {
-                try {
-                    PackageInfo pi = pm.getPackageInfo(name, 0);
-                    if (pi.sharedUserLabel != 0) {
-                        CharSequence nm = pm.getText(name,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            mDisplayLabel = nm;
-                            mLabel = nm.toString();
-                            mPackageInfo = pi.applicationInfo;
-                            return;
-                        }
-                    }
-                } catch (PackageManager.NameNotFoundException e) {
-                }
-            }
-            
             // If still don't have anything to display, just use the
             // service info.
             if (mServices.size() > 0) {
@@ -439,6 +442,9 @@ public class RunningState {
             }
             
             // Finally... whatever, just pick the first package's name.
+            if (pkgs == null) {
+                return;
+            }
             try {
                 ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
                         PackageManager.GET_UNINSTALLED_PACKAGES);
@@ -516,10 +522,9 @@ public class RunningState {
                         context, mSize);
                 if (!sizeStr.equals(mSizeStr)){
                     mSizeStr = sizeStr;
-                    // We update this on the second tick where we update just
-                    // the text in the current items, so no need to say we
-                    // changed here.
-                    return false;
+                    // Only the text of the current items needs to be
+                    // updated, not the structure.
+                    return true;
                 }
             }
             return false;
@@ -535,7 +540,7 @@ public class RunningState {
                     proc.mClient = this;
                 }
                 proc.mCurSeq = curSeq;
-                proc.ensureLabel(pm);
+                proc.ensureLabel(context, pm);
                 changed |= proc.buildDependencyChain(context, pm, curSeq);
             }
             
@@ -659,10 +664,9 @@ public class RunningState {
                     context, mSize);
             if (!sizeStr.equals(mSizeStr)){
                 mSizeStr = sizeStr;
-                // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
+                // Only the text of the current items needs to be
+                // updated, not the structure.
+                return true;
             }
             return false;
         }
@@ -751,6 +755,7 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            mUpdateDelay = CONTENTS_UPDATE_DELAY;
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
                 mHaveData = false;
                 mBackgroundHandler.removeMessages(MSG_RESET_CONTENTS);
@@ -766,6 +771,7 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            mUpdateDelay = CONTENTS_UPDATE_DELAY;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
@@ -818,6 +824,7 @@ public class RunningState {
         mProcessItems.clear();
         mAllProcessItems.clear();
         mUsers.clear();
+        mHaveFingerprint = false;
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -853,45 +860,57 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
-        final PackageManager pm = context.getPackageManager();
-        
-        mSequence++;
-        
-        boolean changed = false;
-
-        // Retrieve list of services, filtering out anything that definitely
-        // won't be shown in the UI.
-        List<ActivityManager.RunningServiceInfo> services 
-                = am.getRunningServices(MAX_SERVICES);
-        int NS = services != null ? services.size() : 0;
+    /**
+     * Hash of everything in the running services and processes that the items are
+     * built from, so that unchanged snapshots can be detected without diffing them.
+     */
+    private static long computeFingerprint(List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        long hash = 17;
+        final int NS = services != null ? services.size() : 0;
         for (int i=0; i<NS; i++) {
             ActivityManager.RunningServiceInfo si = services.get(i);
-            // We are not interested in services that have not been started
-            // and don't have a known client, because
-            // there is nothing the user can do about them.
-            if (!si.started && si.clientLabel == 0) {
-                services.remove(i);
-                i--;
-                NS--;
-                continue;
-            }
-            // We likewise don't care about services running in a
-            // persistent process like the system or phone.
-            if ((si.flags&ActivityManager.RunningServiceInfo.FLAG_PERSISTENT_PROCESS)
-                    != 0) {
-                services.remove(i);
-                i--;
-                NS--;
-                continue;
-            }
+            hash = 31*hash + si.service.hashCode();
+            hash = 31*hash + si.pid;
+            hash = 31*hash + si.uid;
+            hash = 31*hash + (si.process != null ? si.process.hashCode() : 0);
+            hash = 31*hash + (si.foreground ? 1 : 0);
+            hash = 31*hash + (si.started ? 1 : 0);
+            hash = 31*hash + si.activeSince;
+            hash = 31*hash + si.restarting;
+            hash = 31*hash + si.flags;
+            hash = 31*hash + si.clientLabel;
+            hash = 31*hash + (si.clientPackage != null ? si.clientPackage.hashCode() : 0);
+        }
+        hash = 31*hash + NS;
+        final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<NP; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            hash = 31*hash + pi.pid;
+            hash = 31*hash + pi.uid;
+            hash = 31*hash + (pi.processName != null ? pi.processName.hashCode() : 0);
+            hash = 31*hash + pi.importance;
+            hash = 31*hash + pi.importanceReasonCode;
+            hash = 31*hash + pi.importanceReasonPid;
+            hash = 31*hash + pi.flags;
+            hash = 31*hash + pi.lru;
         }
+        hash = 31*hash + NP;
+        return hash;
+    }
 
-        // Retrieve list of running processes, organizing them into a sparse
-        // array for easy retrieval.
-        List<ActivityManager.RunningAppProcessInfo> processes
-                = am.getRunningAppProcesses();
+    /**
+     * Update the process, service and merged items from the given snapshot of the running
+     * services and processes. Returns true if the structure of the items changed.
+     */
+    private boolean updateItems(Context context, PackageManager pm,
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        boolean changed = false;
+
+        final int NS = services != null ? services.size() : 0;
         final int NP = processes != null ? processes.size() : 0;
+        // Organize the running processes into a sparse array for easy retrieval.
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
@@ -1008,7 +1027,7 @@ public class RunningState {
                 }
                 proc.mCurSeq = mSequence;
                 proc.mInteresting = true;
-                proc.ensureLabel(pm);
+                proc.ensureLabel(context, pm);
             } else {
                 proc.mInteresting = false;
             }
@@ -1077,7 +1096,7 @@ public class RunningState {
             while (pit.hasNext()) {
                 ProcessItem pi = pit.next();
                 if (pi.mCurSeq == mSequence) {
-                    pi.ensureLabel(pm);
+                    pi.ensureLabel(context, pm);
                     if (pi.mPid == 0) {
                         // Sanity: a non-process can't be dependent on
                         // anything.
@@ -1237,7 +1256,60 @@ public class RunningState {
                 mMergedItems = newMergedItems;
             }
         }
-        
+
+        return changed;
+    }
+
+    /**
+     * Retrieve the running services and processes and bring the items up to date with them.
+     * Returns the {@link OnRefreshUiListener} refresh the UI needs: REFRESH_TIME if nothing
+     * visible changed.
+     */
+    private int update(Context context, ActivityManager am) {
+        final PackageManager pm = context.getPackageManager();
+
+        // Retrieve list of services, filtering out anything that definitely
+        // won't be shown in the UI.
+        List<ActivityManager.RunningServiceInfo> services 
+                = am.getRunningServices(MAX_SERVICES);
+        int NS = services != null ? services.size() : 0;
+        for (int i=0; i<NS; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            // We are not interested in services that have not been started
+            // and don't have a known client, because
+            // there is nothing the user can do about them.
+            if (!si.started && si.clientLabel == 0) {
+                services.remove(i);
+                i--;
+                NS--;
+                continue;
+            }
+            // We likewise don't care about services running in a
+            // persistent process like the system or phone.
+            if ((si.flags&ActivityManager.RunningServiceInfo.FLAG_PERSISTENT_PROCESS)
+                    != 0) {
+                services.remove(i);
+                i--;
+                NS--;
+                continue;
+            }
+        }
+
+        // Retrieve list of running processes.
+        List<ActivityManager.RunningAppProcessInfo> processes
+                = am.getRunningAppProcesses();
+
+        // The items only need to be rebuilt if something changed in the services or
+        // processes; otherwise only their memory use is refreshed.
+        boolean changed = false;
+        final long fingerprint = computeFingerprint(services, processes);
+        if (!mHaveFingerprint || fingerprint != mFingerprint) {
+            mSequence++;
+            changed = updateItems(context, pm, services, processes);
+            mFingerprint = fingerprint;
+            mHaveFingerprint = true;
+        }
+
         // Count number of interesting other (non-active) processes, and
         // build a list of all processes we will retrieve memory for.
         mAllProcessItems.clear();
@@ -1245,7 +1317,7 @@ public class RunningState {
         int numBackgroundProcesses = 0;
         int numForegroundProcesses = 0;
         int numServiceProcesses = 0;
-        NRP = mRunningProcesses.size();
+        int NRP = mRunningProcesses.size();
         for (int i=0; i<NRP; i++) {
             ProcessItem proc = mRunningProcesses.valueAt(i);
             if (proc.mCurSeq != mSequence) {
@@ -1271,6 +1343,7 @@ public class RunningState {
         long backgroundProcessMemory = 0;
         long foregroundProcessMemory = 0;
         long serviceProcessMemory = 0;
+        boolean dataChanged = false;
         ArrayList<MergedItem> newBackgroundItems = null;
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
@@ -1285,7 +1358,7 @@ public class RunningState {
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                dataChanged |= proc.updateSize(context, pss[i], mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1315,7 +1388,7 @@ public class RunningState {
                         }
                     }
                     mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
+                    dataChanged |= mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
@@ -1323,6 +1396,8 @@ public class RunningState {
                 }
             }
         } catch (RemoteException e) {
+            // Make sure the next pass starts over from a consistent state.
+            mHaveFingerprint = false;
         }
         
         if (newBackgroundItems == null) {
@@ -1364,17 +1439,23 @@ public class RunningState {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
                         user.update(context, true);
-                        user.updateSize(context);
+                        dataChanged |= user.updateSize(context);
                     }
                 }
             }
         }
 
         for (int i=0; i<mMergedItems.size(); i++) {
-            mMergedItems.get(i).updateSize(context);
+            dataChanged |= mMergedItems.get(i).updateSize(context);
         }
         
         synchronized (mLock) {
+            dataChanged |= numBackgroundProcesses != mNumBackgroundProcesses
+                    || numForegroundProcesses != mNumForegroundProcesses
+                    || numServiceProcesses != mNumServiceProcesses
+                    || sizeChanged(context, mBackgroundProcessMemory, backgroundProcessMemory)
+                    || sizeChanged(context, mForegroundProcessMemory, foregroundProcessMemory)
+                    || sizeChanged(context, mServiceProcessMemory, serviceProcessMemory);
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
             mNumServiceProcesses = numServiceProcesses;
@@ -1394,7 +1475,15 @@ public class RunningState {
             }
         }
         
-        return changed;
+        if (changed) {
+            return OnRefreshUiListener.REFRESH_STRUCTURE;
+        }
+        return dataChanged ? OnRefreshUiListener.REFRESH_DATA : OnRefreshUiListener.REFRESH_TIME;
+    }
+
+    private static boolean sizeChanged(Context context, long oldSize, long newSize) {
+        return oldSize != newSize && !Formatter.formatShortFileSize(context, oldSize).equals(
+                Formatter.formatShortFileSize(context, newSize));
     }
     
     ArrayList<BaseItem> getCurrentItems() {
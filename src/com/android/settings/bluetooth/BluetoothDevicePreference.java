@@ -56,6 +56,13 @@ public final class BluetoothDevicePreference extends Preference implements
 
     private AlertDialog mDisconnectDialog;
 
+    // What compareTo() depends on, as of the last attribute change.
+    private boolean mSortConnected;
+    private int mSortBondState;
+    private boolean mSortVisible;
+    private int mSortRssiBucket;
+    private String mSortName;
+
     public BluetoothDevicePreference(Context context, CachedBluetoothDevice cachedDevice) {
         super(context);
 
@@ -123,7 +130,32 @@ public final class BluetoothDevicePreference extends Preference implements
         setEnabled(!mCachedDevice.isBusy());
 
         // This could affect ordering, so notify that
-        notifyHierarchyChanged();
+        if (updateSortKey()) {
+            notifyHierarchyChanged();
+        }
+    }
+
+    /**
+     * Remember what the order of this preference depends on, and return
+     * whether it changed.
+     */
+    private boolean updateSortKey() {
+        final boolean connected = mCachedDevice.isConnected();
+        final int bondState = mCachedDevice.getBondState();
+        final boolean visible = mCachedDevice.isVisible();
+        final int rssiBucket = mCachedDevice.getRssiBucket();
+        final String name = mCachedDevice.getName();
+        if (connected == mSortConnected && bondState == mSortBondState
+                && visible == mSortVisible && rssiBucket == mSortRssiBucket
+                && TextUtils.equals(name, mSortName)) {
+            return false;
+        }
+        mSortConnected = connected;
+        mSortBondState = bondState;
+        mSortVisible = visible;
+        mSortRssiBucket = rssiBucket;
+        mSortName = name;
+        return true;
     }
 
     @Override
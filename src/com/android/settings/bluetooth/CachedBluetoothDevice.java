@@ -49,6 +49,9 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     private final BluetoothDevice mDevice;
     private String mName;
     private short mRssi;
+
+    // Signal strength differences within a bucket don't affect the order, in dBm
+    private static final int RSSI_BUCKET_SIZE = 10;
     private BluetoothClass mBtClass;
     private HashMap<LocalBluetoothProfile, Integer> mProfileConnectionState;
 
@@ -435,11 +438,23 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     void setRssi(short rssi) {
         if (mRssi != rssi) {
+            final int oldBucket = getRssiBucket();
             mRssi = rssi;
-            dispatchAttributesChanged();
+            // Only the bucket of the signal strength is used, for sorting.
+            if (getRssiBucket() != oldBucket) {
+                dispatchAttributesChanged();
+            }
         }
     }
 
+    /**
+     * Return the bucket of the signal strength, so that small variations
+     * don't reorder the device lists.
+     */
+    int getRssiBucket() {
+        return (mRssi >= 0 ? mRssi : mRssi - (RSSI_BUCKET_SIZE - 1)) / RSSI_BUCKET_SIZE;
+    }
+
     /**
      * Checks whether we are connected to this device (any profile counts).
      *
@@ -599,7 +614,15 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
+    /**
+     * Tell the callbacks that attributes changed. Changes are coalesced
+     * and dispatched once per frame, on the main thread.
+     */
     private void dispatchAttributesChanged() {
+        DeviceAttributesDispatcher.getInstance().schedule(this);
+    }
+
+    void dispatchAttributesChangedNow() {
         synchronized (mCallbacks) {
             for (Callback callback : mCallbacks) {
                 callback.onDeviceAttributesChanged();
@@ -643,7 +666,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         if (comparison != 0) return comparison;
 
         // Stronger signal above weaker signal
-        comparison = another.mRssi - mRssi;
+        comparison = another.getRssiBucket() - getRssiBucket();
         if (comparison != 0) return comparison;
 
         // Fallback on name
@@ -23,25 +23,45 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ *
+ * Devices are indexed by address, so lookups don't depend on how many devices
+ * are cached and don't take the lock. Changes to the set of devices are made
+ * while holding the manager's lock, which also keeps the discovery order.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
     private Context mContext;
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mDevicesByAddress =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
+
+    // Synchronize on this for the following.
     private final List<CachedBluetoothDevice> mCachedDevices =
             new ArrayList<CachedBluetoothDevice>();
+    private List<CachedBluetoothDevice> mSnapshot;
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
     }
 
+    /**
+     * Return the cached devices, in the order they were added. The returned
+     * collection is an unmodifiable snapshot, shared until the set of devices
+     * changes.
+     */
     public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+        if (mSnapshot == null) {
+            mSnapshot = Collections.unmodifiableList(
+                    new ArrayList<CachedBluetoothDevice>(mCachedDevices));
+        }
+        return mSnapshot;
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -67,29 +87,37 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
-        }
-        return null;
+        return mDevicesByAddress.get(device.getAddress());
     }
 
     /**
-     * Create and return a new {@link CachedBluetoothDevice}. This assumes
-     * that {@link #findDevice} has already been called and returned null.
+     * Create and return a new {@link CachedBluetoothDevice}. This is meant
+     * to be called after {@link #findDevice} returned null; if the device
+     * was added in between, the existing object is returned.
      * @param device the address of the new Bluetooth device
      * @return the newly created CachedBluetoothDevice object
      */
     CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
             LocalBluetoothProfileManager profileManager,
             BluetoothDevice device) {
-        CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
-            profileManager, device);
-        synchronized (mCachedDevices) {
+        synchronized (this) {
+            CachedBluetoothDevice cachedDevice = mDevicesByAddress.get(device.getAddress());
+            if (cachedDevice != null) {
+                return cachedDevice;
+            }
+            CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
+                profileManager, device);
+            mDevicesByAddress.put(device.getAddress(), newDevice);
             mCachedDevices.add(newDevice);
+            mSnapshot = null;
+            return newDevice;
         }
-        return newDevice;
+    }
+
+    private void removeDeviceLocked(int index) {
+        CachedBluetoothDevice cachedDevice = mCachedDevices.remove(index);
+        mDevicesByAddress.remove(cachedDevice.getDevice().getAddress());
+        mSnapshot = null;
     }
 
     /**
@@ -116,7 +144,7 @@ final class CachedBluetoothDeviceManager {
         for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
             CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
             if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                mCachedDevices.remove(i);
+                removeDeviceLocked(i);
             }
         }
     }
@@ -132,14 +160,14 @@ final class CachedBluetoothDeviceManager {
         }
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
+    public void onBtClassChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshBtClass();
         }
     }
 
-    public synchronized void onUuidChanged(BluetoothDevice device) {
+    public void onUuidChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.onUuidChanged();
@@ -154,7 +182,7 @@ final class CachedBluetoothDeviceManager {
                 CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                     cachedDevice.setVisible(false);
-                    mCachedDevices.remove(i);
+                    removeDeviceLocked(i);
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
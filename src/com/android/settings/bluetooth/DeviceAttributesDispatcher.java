@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Batches the attribute changes of {@link CachedBluetoothDevice}s, so that their callbacks
+ * are told at most once per frame per device, on the main thread, however many changes
+ * happened in between.
+ */
+final class DeviceAttributesDispatcher implements Choreographer.FrameCallback {
+    private static DeviceAttributesDispatcher sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Synchronize on this for the following.
+    private final LinkedHashSet<CachedBluetoothDevice> mPending =
+            new LinkedHashSet<CachedBluetoothDevice>();
+    private boolean mScheduled;
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(DeviceAttributesDispatcher.this);
+        }
+    };
+
+    static synchronized DeviceAttributesDispatcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new DeviceAttributesDispatcher();
+        }
+        return sInstance;
+    }
+
+    private DeviceAttributesDispatcher() {
+    }
+
+    /**
+     * Tell the callbacks of the given device that its attributes changed, on the next frame.
+     */
+    void schedule(CachedBluetoothDevice device) {
+        synchronized (this) {
+            mPending.add(device);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mScheduleFrame.run();
+        } else {
+            mHandler.post(mScheduleFrame);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        final CachedBluetoothDevice[] devices;
+        synchronized (this) {
+            devices = mPending.toArray(new CachedBluetoothDevice[mPending.size()]);
+            mPending.clear();
+            mScheduled = false;
+        }
+        for (CachedBluetoothDevice device : devices) {
+            device.dispatchAttributesChangedNow();
+        }
+    }
+}
@@ -57,7 +57,7 @@ public class SearchResultsSummary extends Fragment {
 
     private ListView mResultsListView;
     private SearchResultsAdapter mResultsAdapter;
-    private UpdateSearchResultsTask mUpdateSearchResultsTask;
+    private Index.SearchSession mSearchSession;
 
     private ListView mSuggestionsListView;
     private SuggestionsAdapter mSuggestionsAdapter;
@@ -71,24 +71,16 @@ public class SearchResultsSummary extends Fragment {
     private boolean mShowResults;
 
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * Receives the query results cursors, the best results first and then all of them
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private final Index.OnSearchResultsListener mSearchResultsListener =
+            new Index.OnSearchResultsListener() {
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+        public void onSearchResults(String query, Cursor cursor, boolean complete) {
+            setResultsCursor(cursor);
+            setResultsVisibility(cursor.getCount() > 0);
         }
-
-        @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
+    };
 
     /**
      * A basic AsyncTask for updating the suggestions cursor
@@ -115,6 +107,8 @@ public class SearchResultsSummary extends Fragment {
         super.onCreate(savedInstanceState);
 
         mResultsAdapter = new SearchResultsAdapter(getActivity());
+        mSearchSession = Index.getInstance(getActivity()).createSearchSession(
+                mSearchResultsListener);
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
 
         if (savedInstanceState != null) {
@@ -141,7 +135,8 @@ public class SearchResultsSummary extends Fragment {
     public void onDestroy() {
         mResultsListView = null;
         mResultsAdapter = null;
-        mUpdateSearchResultsTask = null;
+        mSearchSession.cancel();
+        mSearchSession = null;
 
         mSuggestionsListView = null;
         mSuggestionsAdapter = null;
@@ -325,10 +320,7 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearResults() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
+        mSearchSession.cancel();
         setResultsCursor(null);
     }
 
@@ -358,9 +350,8 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearAllTasks() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
+        if (mSearchSession != null) {
+            mSearchSession.cancel();
         }
         if (mUpdateSuggestionsTask != null) {
             mUpdateSuggestionsTask.cancel(false);
@@ -384,8 +375,7 @@ public class SearchResultsSummary extends Fragment {
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mSearchSession.search(mQuery);
         }
     }
 
@@ -16,101 +16,65 @@
 
 package com.android.settings.fuelgauge;
 
-import android.app.AppGlobals;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.IPackageManager;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
 import android.os.Handler;
-import android.os.RemoteException;
-import android.os.UserHandle;
 import android.os.UserManager;
-import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
+import com.android.settings.UidLabelCache;
 import com.android.settings.Utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
  * and icon image.
  */
-public class BatteryEntry {
+public class BatteryEntry implements UidLabelCache.Listener {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-
     static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
+    static final ArrayList<BatteryEntry> sRequested = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
-
-        public void abort() {
-            mAbort = true;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
-                    }
-                    be = mRequestQueue.remove(0);
-                }
-                be.loadNameAndIcon();
-            }
-        }
-    }
-
-    private static NameAndIconLoader mRequestThread;
-
+    /**
+     * Request the names and icons of the queued entries from the {@link UidLabelCache}.
+     * Each entry is reported with {@link #MSG_UPDATE_NAME_ICON} as it is loaded, and
+     * {@link #MSG_REPORT_FULLY_DRAWN} follows the last one.
+     */
     public static void startRequestQueue() {
         if (sHandler != null) {
+            final BatteryEntry[] entries;
             synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
-                }
+                entries = mRequestQueue.toArray(new BatteryEntry[mRequestQueue.size()]);
+                mRequestQueue.clear();
+                sRequested.addAll(Arrays.asList(entries));
+            }
+            for (BatteryEntry entry : entries) {
+                UidLabelCache.getInstance(entry.context).request(entry.sipper.uidObj.getUid(),
+                        UidLabelCache.PRIORITY_VISIBLE, entry);
             }
         }
     }
 
     public static void stopRequestQueue() {
+        final BatteryEntry[] entries;
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
-            }
+            entries = sRequested.toArray(new BatteryEntry[sRequested.size()]);
+            sRequested.clear();
+            mRequestQueue.clear();
+            sHandler = null;
+        }
+        for (BatteryEntry entry : entries) {
+            UidLabelCache.getInstance(entry.context).cancel(entry);
         }
-    }
-
-    public static void clearUidCache() {
-        sUidCache.clear();
     }
 
     public final Context context;
@@ -121,12 +85,6 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
-    }
-
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
         sHandler = handler;
         this.context = context;
@@ -209,12 +167,9 @@ public class BatteryEntry {
 
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final UidLabelCache.Info info = UidLabelCache.getInstance(context).getCached(uid);
+        if (info != null && info.packages != null) {
+            applyUidInfo(info);
             return;
         }
         PackageManager pm = context.getPackageManager();
@@ -241,93 +196,39 @@ public class BatteryEntry {
     }
 
     /**
-     * Loads the app label and icon image and stores into the cache.
+     * Takes the app label and icon image from the given info.
      */
-    public void loadNameAndIcon() {
-        // Bail out if the current sipper is not an App sipper.
-        if (sipper.uidObj == null) {
-            return;
-        }
-        PackageManager pm = context.getPackageManager();
-        final int uid = sipper.uidObj.getUid();
-        final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
-        sipper.mPackages = pm.getPackagesForUid(uid);
-        if (sipper.mPackages == null) {
-            name = Integer.toString(uid);
+    void applyUidInfo(UidLabelCache.Info info) {
+        sipper.mPackages = info.packages;
+        if (info.packages == null) {
+            name = Integer.toString(info.uid);
             return;
         }
-
-        String[] packageLabels = new String[sipper.mPackages.length];
-        System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
-
-        // Convert package names to user-facing labels where possible
-        IPackageManager ipm = AppGlobals.getPackageManager();
-        final int userId = UserHandle.getUserId(uid);
-        for (int i = 0; i < packageLabels.length; i++) {
-            try {
-                final ApplicationInfo ai = ipm.getApplicationInfo(packageLabels[i],
-                        0 /* no flags */, userId);
-                if (ai == null) {
-                    Log.d(PowerUsageSummary.TAG, "Retrieving null app info for package "
-                            + packageLabels[i] + ", user " + userId);
-                    continue;
-                }
-                CharSequence label = ai.loadLabel(pm);
-                if (label != null) {
-                    packageLabels[i] = label.toString();
-                }
-                if (ai.icon != 0) {
-                    defaultPackageName = sipper.mPackages[i];
-                    icon = ai.loadIcon(pm);
-                    break;
-                }
-            } catch (RemoteException e) {
-                Log.d(PowerUsageSummary.TAG, "Error while retrieving app info for package "
-                        + packageLabels[i] + ", user " + userId, e);
-            }
-        }
+        defaultPackageName = info.iconPackage;
+        icon = info.newIcon(context.getResources());
         if (icon == null) {
-            icon = defaultActivityIcon;
+            icon = context.getPackageManager().getDefaultActivityIcon();
+        }
+        if (info.label != null) {
+            name = info.label;
+        } else if (info.packages.length == 1) {
+            name = info.packageLabels[0];
         }
+    }
 
-        if (packageLabels.length == 1) {
-            name = packageLabels[0];
-        } else {
-            // Look for an official name for this UID.
-            for (String pkgName : sipper.mPackages) {
-                try {
-                    final PackageInfo pi = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
-                    if (pi == null) {
-                        Log.d(PowerUsageSummary.TAG, "Retrieving null package info for package "
-                                + pkgName + ", user " + userId);
-                        continue;
-                    }
-                    if (pi.sharedUserLabel != 0) {
-                        final CharSequence nm = pm.getText(pkgName,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            name = nm.toString();
-                            if (pi.applicationInfo.icon != 0) {
-                                defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
-                            }
-                            break;
-                        }
-                    }
-                } catch (RemoteException e) {
-                    Log.d(PowerUsageSummary.TAG, "Error while retrieving package info for package "
-                            + pkgName + ", user " + userId, e);
-                }
+    @Override
+    public void onUidInfoLoaded(UidLabelCache.Info info) {
+        applyUidInfo(info);
+        final boolean done;
+        synchronized (mRequestQueue) {
+            if (!sRequested.remove(this) || sHandler == null) {
+                return;
             }
+            done = sRequested.isEmpty();
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        if (done) {
+            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
         }
     }
 }
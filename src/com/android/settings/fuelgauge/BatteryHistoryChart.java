@@ -19,6 +19,7 @@ package com.android.settings.fuelgauge;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.DashPathEffect;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.provider.Settings;
 import android.text.format.DateFormat;
@@ -45,7 +46,9 @@ import android.util.TypedValue;
 import android.view.View;
 import libcore.icu.LocaleData;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -218,6 +221,9 @@ public class BatteryHistoryChart extends View {
     boolean mHaveWifi;
     boolean mHaveGps;
     boolean mHavePhoneSignal;
+    long mTimeRemaining;
+    HistoryModel mHistory;
+    DecodeHistoryTask mDecodeTask;
 
     final ArrayList<TimeLabel> mTimeLabels = new ArrayList<TimeLabel>();
     final ArrayList<DateLabel> mDateLabels = new ArrayList<DateLabel>();
@@ -314,6 +320,178 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * The battery history, decoded once from {@link BatteryStats} into parallel arrays of
+     * primitives, so that the chart can be rebuilt at any size without iterating the history
+     * again. Only the records up to the last delta record are kept.
+     */
+    static final class HistoryModel {
+        private static final Object sLock = new Object();
+
+        // Synchronize on sLock for the following. Both are weak: the model is only kept
+        // while a chart shows it.
+        private static WeakReference<BatteryStats> sCachedStats;
+        private static WeakReference<HistoryModel> sCachedModel;
+
+        int mCount;
+        long[] mTime;
+        long[] mCurrentTime;
+        byte[] mCmd;
+        byte[] mLevel;
+        int[] mStates;
+        int[] mStates2;
+
+        long mHistStart;
+        long mHistDataEnd;
+        long mStartWallTime;
+        long mEndDataWallTime;
+        boolean mHaveGps;
+        boolean mHaveWifi;
+
+        /**
+         * Return the model already decoded from the given stats, or null.
+         */
+        static HistoryModel getCached(BatteryStats stats) {
+            synchronized (sLock) {
+                if (sCachedStats != null && sCachedStats.get() == stats) {
+                    return sCachedModel.get();
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Decode the history of the given stats, or return the model already decoded
+         * from them. Must not be called on the main thread.
+         */
+        static HistoryModel decode(BatteryStats stats) {
+            HistoryModel model = getCached(stats);
+            if (model != null) {
+                return model;
+            }
+            model = new HistoryModel();
+            synchronized (stats) {
+                model.read(stats);
+            }
+            synchronized (sLock) {
+                sCachedStats = new WeakReference<BatteryStats>(stats);
+                sCachedModel = new WeakReference<HistoryModel>(model);
+            }
+            return model;
+        }
+
+        private void read(BatteryStats stats) {
+            final long start = SystemClock.uptimeMillis();
+            int capacity = 256;
+            mTime = new long[capacity];
+            mCurrentTime = new long[capacity];
+            mCmd = new byte[capacity];
+            mLevel = new byte[capacity];
+            mStates = new int[capacity];
+            mStates2 = new int[capacity];
+
+            int pos = 0;
+            int lastInteresting = 0;
+            long lastWallTime = 0;
+            long lastRealtime = 0;
+            int aggrStates = 0;
+            int aggrStates2 = 0;
+            if (stats.startIteratingHistoryLocked()) {
+                final HistoryItem rec = new HistoryItem();
+                while (stats.getNextHistoryLocked(rec)) {
+                    if (pos == capacity) {
+                        capacity *= 2;
+                        mTime = Arrays.copyOf(mTime, capacity);
+                        mCurrentTime = Arrays.copyOf(mCurrentTime, capacity);
+                        mCmd = Arrays.copyOf(mCmd, capacity);
+                        mLevel = Arrays.copyOf(mLevel, capacity);
+                        mStates = Arrays.copyOf(mStates, capacity);
+                        mStates2 = Arrays.copyOf(mStates2, capacity);
+                    }
+                    mTime[pos] = rec.time;
+                    mCurrentTime[pos] = rec.currentTime;
+                    mCmd[pos] = rec.cmd;
+                    mLevel[pos] = rec.batteryLevel;
+                    mStates[pos] = rec.states;
+                    mStates2[pos] = rec.states2;
+                    pos++;
+                    if (pos == 1) {
+                        mHistStart = rec.time;
+                    }
+                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                            || rec.cmd == HistoryItem.CMD_RESET) {
+                        // If there is a ridiculously large jump in time, then we won't be
+                        // able to create a good chart with that data, so just ignore the
+                        // times we got before and pretend like our data extends back from
+                        // the time we have now.
+                        // Also, if we are getting a time change and we are less than 5 minutes
+                        // since the start of the history real time, then also use this new
+                        // time to compute the base time, since whatever time we had before is
+                        // pretty much just noise.
+                        if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                                || rec.time < (mHistStart+(5*60*1000L))) {
+                            mStartWallTime = 0;
+                        }
+                        lastWallTime = rec.currentTime;
+                        lastRealtime = rec.time;
+                        if (mStartWallTime == 0) {
+                            mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
+                        }
+                    }
+                    if (rec.isDeltaData()) {
+                        lastInteresting = pos;
+                        mHistDataEnd = rec.time;
+                        aggrStates |= rec.states;
+                        aggrStates2 |= rec.states2;
+                    }
+                }
+                stats.finishIteratingHistoryLocked();
+            }
+
+            mCount = lastInteresting;
+            if (mCount < capacity) {
+                mTime = Arrays.copyOf(mTime, mCount);
+                mCurrentTime = Arrays.copyOf(mCurrentTime, mCount);
+                mCmd = Arrays.copyOf(mCmd, mCount);
+                mLevel = Arrays.copyOf(mLevel, mCount);
+                mStates = Arrays.copyOf(mStates, mCount);
+                mStates2 = Arrays.copyOf(mStates2, mCount);
+            }
+            mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
+            mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+            mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
+                    || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                            |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                            |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+            if (DEBUG) Log.d(TAG, "Decoded " + mCount + " of " + pos + " history records in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Decodes the history of the stats given to {@link #setStats} off the main thread.
+     */
+    private class DecodeHistoryTask extends AsyncTask<Void, Void, HistoryModel> {
+        private final BatteryStats mTaskStats;
+
+        DecodeHistoryTask(BatteryStats stats) {
+            mTaskStats = stats;
+        }
+
+        @Override
+        protected HistoryModel doInBackground(Void... params) {
+            return HistoryModel.decode(mTaskStats);
+        }
+
+        @Override
+        protected void onPostExecute(HistoryModel history) {
+            if (mDecodeTask == this) {
+                mDecodeTask = null;
+                setHistory(history);
+            }
+        }
+    }
+
     static class TimeLabel {
         final int x;
         final String label;
@@ -540,73 +718,91 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
-            }
-        }
-        mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
-        mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
-                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+        mTimeRemaining = remainingTimeUs/1000;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
+
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(false);
+            mDecodeTask = null;
+        }
+        HistoryModel history = HistoryModel.getCached(stats);
+        if (history != null) {
+            setHistory(history);
+        } else {
+            // Decoding a long history takes a while: leave the chart empty until it's done.
+            mHistory = null;
+            clearChart();
+            mDecodeTask = new DecodeHistoryTask(stats);
+            mDecodeTask.execute();
+        }
+    }
+
+    /**
+     * Drop the chart of the previous history, so that it is not drawn along with the new
+     * labels while the new history is decoded.
+     */
+    private void clearChart() {
+        mBatLevelPath.reset();
+        mBatGoodPath.reset();
+        mBatWarnPath.reset();
+        mTimeRemainPath.reset();
+        mBatCriticalPath.reset();
+        mScreenOnPath.reset();
+        mGpsOnPath.reset();
+        mWifiRunningPath.reset();
+        mCpuRunningPath.reset();
+        mChargingPath.reset();
+        mPhoneSignalChart.init(0);
+        mTimeLabels.clear();
+        mDateLabels.clear();
+        mLastWidth = mLastHeight = -1;
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mStats != null && mHistory == null && mDecodeTask == null) {
+            // The decoding was cancelled when we were detached.
+            mDecodeTask = new DecodeHistoryTask(mStats);
+            mDecodeTask.execute();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(false);
+            mDecodeTask = null;
+        }
+    }
+
+    void setHistory(HistoryModel history) {
+        mHistory = history;
+        mHistStart = history.mHistStart;
+        mHistDataEnd = history.mHistDataEnd;
+        mStartWallTime = history.mStartWallTime;
+        mEndDataWallTime = history.mEndDataWallTime;
+        mHistEnd = mHistDataEnd + mTimeRemaining;
+        mEndWallTime = mEndDataWallTime + mTimeRemaining;
+        mNumHist = history.mCount;
+        mHaveGps = history.mHaveGps;
+        mHaveWifi = history.mHaveWifi;
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
+
+        // Rebuild the chart if it was already laid out.
+        final int w = getWidth();
+        final int h = getHeight();
+        mLastWidth = mLastHeight = -1;
+        if (w > 0 && h > 0) {
+            onSizeChanged(w, h, w, h);
+            invalidate();
+        }
     }
 
     @Override
@@ -707,6 +903,11 @@ public class BatteryHistoryChart extends View {
             return;
         }
 
+        if (mHistory == null) {
+            // Still decoding; setHistory() will build the chart.
+            return;
+        }
+
         if (DEBUG) Log.d(TAG, "Rebuilding chart for: " + w + "x" + h);
 
         mLastWidth = w;
@@ -796,23 +997,37 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
+        final HistoryModel history = mHistory;
         final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        if (mEndDataWallTime > mStartWallTime) {
+            for (int i=0; i<N; i++) {
+                final byte cmd = history.mCmd[i];
+                final long time = history.mTime[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
                     }
+                    if (i+1 < N && history.mCmd[i+1] == HistoryItem.CMD_UPDATE) {
+                        // Only the last record landing on a pixel column shows: what the
+                        // others draw is covered, so skip them.
+                        final long nextWalltime = curWalltime + history.mTime[i+1] - time;
+                        final int nextX = mLevelLeft
+                                + (int)(((nextWalltime-walltimeStart)*levelWidth)/walltimeChange);
+                        if (Math.max(nextX, 0) == x) {
+                            continue;
+                        }
+                    }
+                    final byte level = history.mLevel[i];
+                    final int states = history.mStates[i];
+                    final int states2 = history.mStates2[i];
                     if (false) {
                         StringBuilder sb = new StringBuilder(128);
                         sb.append("walloff=");
@@ -823,14 +1038,14 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = level;
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -861,7 +1076,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -872,7 +1087,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -883,7 +1098,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -894,7 +1109,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -915,7 +1130,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -930,7 +1145,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -942,14 +1157,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -959,18 +1174,18 @@ public class BatteryHistoryChart extends View {
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        if (history.mCurrentTime[i] >= mStartWallTime) {
+                            curWalltime = history.mCurrentTime[i];
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = mStartWallTime + (time-mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
                             finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
@@ -983,10 +1198,7 @@ public class BatteryHistoryChart extends View {
                         }
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
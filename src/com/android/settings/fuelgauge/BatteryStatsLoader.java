@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.Intent;
+import android.os.BatteryStats;
+import android.os.Build;
+import android.os.UserHandle;
+import android.os.UserManager;
+
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.internal.os.PowerProfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loader refreshing a {@link BatteryStatsHelper} and computing the entries shown by
+ * {@link PowerUsageSummary}, off the main thread.
+ *
+ * The helper is shared with the fragment, which must synchronize on it to use it.
+ */
+public class BatteryStatsLoader extends AsyncTaskLoader<BatteryStatsLoader.Snapshot> {
+    private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
+    private static final int MAX_ITEMS_TO_LIST = 10;
+    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
+    private static final int SECONDS_IN_HOUR = 60 * 60;
+
+    /**
+     * One entry of the list, identified by {@link #key} across loads.
+     */
+    public static class Item {
+        public final String key;
+        public final BatterySipper sipper;
+        public final double percentOfMax;
+        public final double percentOfTotal;
+
+        Item(String key, BatterySipper sipper, double percentOfMax, double percentOfTotal) {
+            this.key = key;
+            this.sipper = sipper;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+        }
+    }
+
+    /**
+     * The result of a load. Items are in the order they are shown.
+     */
+    public static class Snapshot {
+        public final BatteryStats stats;
+        public final Intent batteryBroadcast;
+        public final List<Item> items;
+
+        Snapshot(BatteryStats stats, Intent batteryBroadcast, List<Item> items) {
+            this.stats = stats;
+            this.batteryBroadcast = batteryBroadcast;
+            this.items = Collections.unmodifiableList(items);
+        }
+    }
+
+    private final BatteryStatsHelper mHelper;
+    private final UserManager mUm;
+    private final int mStatsType;
+    private final boolean mClearStats;
+
+    private Snapshot mSnapshot;
+
+    public BatteryStatsLoader(Context context, BatteryStatsHelper helper, int statsType,
+            boolean clearStats) {
+        super(context);
+        mHelper = helper;
+        mUm = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mStatsType = statsType;
+        mClearStats = clearStats;
+    }
+
+    /**
+     * Return the key of the given sipper: its UID, or its drain type when it has none.
+     */
+    static String getKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        }
+        if (sipper.drainType == BatterySipper.DrainType.USER) {
+            return sipper.drainType.name() + ":" + sipper.userId;
+        }
+        return sipper.drainType.name();
+    }
+
+    @Override
+    public Snapshot loadInBackground() {
+        final List<UserHandle> profiles = mUm.getUserProfiles();
+        final ArrayList<Item> items = new ArrayList<Item>();
+        synchronized (mHelper) {
+            if (mClearStats) {
+                mHelper.clearStats();
+            }
+            final BatteryStats stats = mHelper.getStats();
+            final PowerProfile powerProfile = mHelper.getPowerProfile();
+            final double averagePower = powerProfile.getAveragePower(
+                    PowerProfile.POWER_SCREEN_FULL);
+            if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
+                mHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+                addItems(stats, items);
+            }
+            return new Snapshot(stats, mHelper.getBatteryBroadcast(), items);
+        }
+    }
+
+    private void addItems(BatteryStats stats, ArrayList<Item> items) {
+        final List<BatterySipper> usageList = mHelper.getUsageList();
+
+        final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
+        final int numSippers = usageList.size();
+        for (int i = 0; i < numSippers; i++) {
+            final BatterySipper sipper = usageList.get(i);
+            if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+                continue;
+            }
+            final double percentOfTotal =
+                    ((sipper.value / mHelper.getTotalPower()) * dischargeAmount);
+            if (((int) (percentOfTotal + .5)) < 1) {
+                continue;
+            }
+            if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
+                // Don't show over-counted unless it is at least 2/3 the size of
+                // the largest real entry, and its percent of total is more significant
+                if (sipper.value < ((mHelper.getMaxRealPower()*2)/3)) {
+                    continue;
+                }
+                if (percentOfTotal < 10) {
+                    continue;
+                }
+                if ("user".equals(Build.TYPE)) {
+                    continue;
+                }
+            }
+            if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
+                // Don't show over-counted unless it is at least 1/2 the size of
+                // the largest real entry, and its percent of total is more significant
+                if (sipper.value < (mHelper.getMaxRealPower()/2)) {
+                    continue;
+                }
+                if (percentOfTotal < 5) {
+                    continue;
+                }
+                if ("user".equals(Build.TYPE)) {
+                    continue;
+                }
+            }
+            final double percentOfMax = (sipper.value * 100) / mHelper.getMaxPower();
+            sipper.percent = percentOfTotal;
+            items.add(new Item(getKey(sipper), sipper, percentOfMax, percentOfTotal));
+            if (items.size() > MAX_ITEMS_TO_LIST) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(Snapshot snapshot) {
+        mSnapshot = snapshot;
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        mSnapshot = null;
+    }
+}
@@ -17,13 +17,14 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.Loader;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -34,13 +35,12 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
-import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatteryStatsHelper;
-import com.android.internal.os.PowerProfile;
 import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
@@ -66,6 +66,10 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MENU_BATTERY_SAVER = Menu.FIRST + 2;
     private static final int MENU_HELP = Menu.FIRST + 3;
 
+    private static final int LOADER_STATS = 1;
+    private static final String KEY_STATS_TYPE = "stats_type";
+    private static final String KEY_CLEAR_STATS = "clear_stats";
+
     private UserManager mUm;
 
     private BatteryHistoryPreference mHistPref;
@@ -75,12 +79,9 @@ public class PowerUsageSummary extends PreferenceFragment {
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
-    private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
-    private static final int MAX_ITEMS_TO_LIST = 10;
-    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
-    private static final int SECONDS_IN_HOUR = 60 * 60;
-
+    // Shared with BatteryStatsLoader: synchronize on it to use it.
     private BatteryStatsHelper mStatsHelper;
+    private boolean mStatsStale;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -116,7 +117,7 @@ public class PowerUsageSummary extends PreferenceFragment {
     @Override
     public void onStart() {
         super.onStart();
-        mStatsHelper.clearStats();
+        mStatsStale = true;
     }
 
     @Override
@@ -125,11 +126,9 @@ public class PowerUsageSummary extends PreferenceFragment {
         BatteryStatsHelper.dropFile(getActivity(), BATTERY_HISTORY_FILE);
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
-        if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
-            mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
-        }
-        refreshStats();
+        final boolean clearStats = mHandler.hasMessages(MSG_REFRESH_STATS);
+        mHandler.removeMessages(MSG_REFRESH_STATS);
+        refreshStats(clearStats);
     }
 
     @Override
@@ -150,19 +149,22 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onDestroy() {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
-            BatteryEntry.clearUidCache();
+            synchronized (mStatsHelper) {
+                mStatsHelper.storeState();
+            }
         }
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
             Bundle args = new Bundle();
+            synchronized (mStatsHelper) {
+                mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+                args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
+                        mStatsHelper.getBatteryBroadcast());
+            }
             args.putString(BatteryHistoryDetail.EXTRA_STATS, BATTERY_HISTORY_FILE);
-            args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
-                    mStatsHelper.getBatteryBroadcast());
             SettingsActivity sa = (SettingsActivity) getActivity();
             sa.startPreferencePanel(BatteryHistoryDetail.class.getName(), args,
                     R.string.history_details_title, null, null, 0);
@@ -173,8 +175,10 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
         PowerGaugePreference pgp = (PowerGaugePreference) preference;
         BatteryEntry entry = pgp.getInfo();
-        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(), mStatsHelper,
-                mStatsType, entry, true);
+        synchronized (mStatsHelper) {
+            PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(),
+                    mStatsHelper, mStatsType, entry, true);
+        }
         return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
 
@@ -210,11 +214,10 @@ public class PowerUsageSummary extends PreferenceFragment {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                refreshStats(false);
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                refreshStats(true);
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
             case MENU_BATTERY_SAVER:
@@ -248,94 +251,103 @@ public class PowerUsageSummary extends PreferenceFragment {
         return false;
     }
 
-    private void refreshStats() {
-        mAppListGroup.removeAll();
+    /**
+     * Start loading fresh stats, clearing the ones already read if asked to. The list is
+     * updated when they are loaded.
+     */
+    private void refreshStats(boolean clearStats) {
+        final Bundle args = new Bundle();
+        args.putInt(KEY_STATS_TYPE, mStatsType);
+        args.putBoolean(KEY_CLEAR_STATS, clearStats || mStatsStale);
+        mStatsStale = false;
+        getLoaderManager().restartLoader(LOADER_STATS, args, mStatsCallbacks);
+    }
+
+    /**
+     * Update the list to show the given snapshot. Preferences are matched to the new entries
+     * by key, so that only the ones that changed are bound again.
+     */
+    private void updatePreferences(BatteryStatsLoader.Snapshot snapshot) {
         mAppListGroup.setOrderingAsAdded(false);
-        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
-                mStatsHelper.getBatteryBroadcast());
-        mHistPref.setOrder(-1);
-        mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
-
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
-
-            final List<BatterySipper> usageList = mStatsHelper.getUsageList();
-
-            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
-            final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
-                final BatterySipper sipper = usageList.get(i);
-                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
-                    continue;
-                }
-                final double percentOfTotal =
-                        ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
-                if (((int) (percentOfTotal + .5)) < 1) {
-                    continue;
-                }
-                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
-                    // Don't show over-counted unless it is at least 2/3 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 10) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE)) {
-                        continue;
-                    }
-                }
-                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
-                    // Don't show over-counted unless it is at least 1/2 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 5) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE)) {
-                        continue;
-                    }
-                }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+        if (mHistPref == null || mHistPref.getStats() != snapshot.stats) {
+            if (mHistPref != null) {
+                mAppListGroup.removePreference(mHistPref);
+            }
+            mHistPref = new BatteryHistoryPreference(getActivity(), snapshot.stats,
+                    snapshot.batteryBroadcast);
+            mHistPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistPref);
+        }
+
+        final ArrayMap<String, PowerGaugePreference> stalePrefs =
+                new ArrayMap<String, PowerGaugePreference>();
+        for (int i = mAppListGroup.getPreferenceCount() - 1; i >= 0; i--) {
+            final Preference pref = mAppListGroup.getPreference(i);
+            if (pref instanceof PowerGaugePreference) {
+                stalePrefs.put(pref.getKey(), (PowerGaugePreference) pref);
+            } else if (pref != mHistPref) {
+                mAppListGroup.removePreference(pref);
+            }
+        }
+
+        final List<BatteryStatsLoader.Item> items = snapshot.items;
+        final int numItems = items.size();
+        for (int i = 0; i < numItems; i++) {
+            final BatteryStatsLoader.Item item = items.get(i);
+            final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm,
+                    item.sipper);
+            PowerGaugePreference pref = stalePrefs.remove(item.key);
+            if (pref != null) {
+                pref.setInfo(entry);
+            } else {
+                final UserHandle userHandle = new UserHandle(
+                        UserHandle.getUserId(item.sipper.getUid()));
                 final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
                         userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
-
-                final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
+                final CharSequence contentDescription = mUm.getBadgedLabelForUser(
+                        entry.getLabel(), userHandle);
+                pref = new PowerGaugePreference(getActivity(), badgedIcon, contentDescription,
+                        entry);
                 pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                addedSome = true;
+                pref.setKey(item.key);
                 mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
-                    break;
-                }
             }
+            pref.setOrder(i + 1);
+            pref.setPercent(item.percentOfMax, item.percentOfTotal);
         }
-        if (!addedSome) {
+        for (int i = stalePrefs.size() - 1; i >= 0; i--) {
+            mAppListGroup.removePreference(stalePrefs.valueAt(i));
+        }
+
+        if (numItems == 0) {
             addNotAvailableMessage();
+        } else {
+            mHistPref.setHideLabels(false);
         }
 
         BatteryEntry.startRequestQueue();
     }
 
+    private final LoaderManager.LoaderCallbacks<BatteryStatsLoader.Snapshot> mStatsCallbacks =
+            new LoaderManager.LoaderCallbacks<BatteryStatsLoader.Snapshot>() {
+        @Override
+        public Loader<BatteryStatsLoader.Snapshot> onCreateLoader(int id, Bundle args) {
+            return new BatteryStatsLoader(getActivity(), mStatsHelper,
+                    args.getInt(KEY_STATS_TYPE), args.getBoolean(KEY_CLEAR_STATS));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<BatteryStatsLoader.Snapshot> loader,
+                BatteryStatsLoader.Snapshot snapshot) {
+            updatePreferences(snapshot);
+        }
+
+        @Override
+        public void onLoaderReset(Loader<BatteryStatsLoader.Snapshot> loader) {
+            // Keep showing the last snapshot.
+        }
+    };
+
     static final int MSG_REFRESH_STATS = 100;
 
     Handler mHandler = new Handler() {
@@ -362,8 +374,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                     }
                     break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
-                    refreshStats();
+                    refreshStats(true);
             }
             super.handleMessage(msg);
         }
@@ -18,6 +18,7 @@ package com.android.settings.location;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -67,6 +68,18 @@ class SettingsInjector {
      */
     private static final long INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS = 1000;
 
+    /**
+     * Default number of settings whose status is loaded at the same time. Each load starts a
+     * service, so this trades memory pressure for the time it takes to fill the screen.
+     */
+    static final int DEFAULT_MAX_CONCURRENT_LOADS = 3;
+
+    /**
+     * Name of the shared preferences holding the last status received from each setting, so
+     * that the preferences can be shown in that state while their status is reloaded.
+     */
+    private static final String STATUS_CACHE_NAME = "injected_location_settings";
+
     /**
      * {@link Message#what} value for starting to load status values
      * in case we aren't already in the process of loading them.
@@ -92,10 +105,24 @@ class SettingsInjector {
 
     private final Handler mHandler;
 
+    /**
+     * Maximum number of settings being loaded at the same time, not counting the ones that
+     * timed out.
+     */
+    private final int mMaxConcurrentLoads;
+
+    private final SharedPreferences mStatusCache;
+
     public SettingsInjector(Context context) {
+        this(context, DEFAULT_MAX_CONCURRENT_LOADS);
+    }
+
+    public SettingsInjector(Context context, int maxConcurrentLoads) {
         mContext = context;
         mSettings = new HashSet<Setting>();
         mHandler = new StatusLoadingHandler();
+        mMaxConcurrentLoads = Math.max(1, maxConcurrentLoads);
+        mStatusCache = context.getSharedPreferences(STATUS_CACHE_NAME, Context.MODE_PRIVATE);
     }
 
     /**
@@ -250,6 +277,8 @@ class SettingsInjector {
         Preference pref = new DimmableIconPreference(mContext);
         pref.setTitle(info.title);
         pref.setSummary(null);
+        // Show the last status we received until the current one is loaded.
+        pref.setEnabled(mStatusCache.getBoolean(getStatusCacheKey(info), true));
         PackageManager pm = mContext.getPackageManager();
         Drawable icon = pm.getDrawable(info.packageName, info.iconId, null);
         pref.setIcon(icon);
@@ -265,10 +294,14 @@ class SettingsInjector {
         return pref;
     }
 
+    private static String getStatusCacheKey(InjectedSetting info) {
+        return info.packageName + "/" + info.className;
+    }
+
     /**
-     * Loads the setting status values one at a time. Each load starts a subclass of {@link
-     * SettingInjectorService}, so to reduce memory pressure we don't want to load too many at
-     * once.
+     * Loads the setting status values, at most {@link #mMaxConcurrentLoads} at a time. Each load
+     * starts a subclass of {@link SettingInjectorService}, so to reduce memory pressure we don't
+     * want to load too many at once.
      */
     private final class StatusLoadingHandler extends Handler {
 
@@ -278,20 +311,26 @@ class SettingsInjector {
         private Set<Setting> mSettingsToLoad = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded now and haven't timed out. In practice this should have
-         * zero or one elements.
+         * Settings that are being loaded now and haven't timed out. This has at most
+         * {@link #mMaxConcurrentLoads} elements.
          */
         private Set<Setting> mSettingsBeingLoaded = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded but have timed out. If only one setting has timed out, we
-         * will go ahead and start loading the next setting so that one slow load won't delay the
-         * load of the other settings.
+         * Settings that are being loaded but have timed out. As long as no more than
+         * {@link #mMaxConcurrentLoads} settings have timed out, we will go ahead and start
+         * loading the next settings so that slow loads won't delay the load of the other
+         * settings.
          */
         private Set<Setting> mTimedOutSettings = new HashSet<Setting>();
 
         private boolean mReloadRequested;
 
+        /**
+         * Start of the current reload of all the settings, or 0 if none is in progress.
+         */
+        private long mReloadStartMillis;
+
         @Override
         public void handleMessage(Message msg) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -305,7 +344,7 @@ class SettingsInjector {
                     break;
                 case WHAT_RECEIVED_STATUS:
                     final Setting receivedSetting = (Setting) msg.obj;
-                    receivedSetting.maybeLogElapsedTime();
+                    receivedSetting.recordElapsedTime();
                     mSettingsBeingLoaded.remove(receivedSetting);
                     mTimedOutSettings.remove(receivedSetting);
                     removeMessages(WHAT_TIMEOUT, receivedSetting);
@@ -314,6 +353,7 @@ class SettingsInjector {
                     final Setting timedOutSetting = (Setting) msg.obj;
                     mSettingsBeingLoaded.remove(timedOutSetting);
                     mTimedOutSettings.add(timedOutSetting);
+                    timedOutSetting.timeoutCount++;
                     if (Log.isLoggable(TAG, Log.WARN)) {
                         Log.w(TAG, "Timed out after " + timedOutSetting.getElapsedTime()
                                 + " millis trying to get status for: " + timedOutSetting);
@@ -323,52 +363,84 @@ class SettingsInjector {
                     Log.wtf(TAG, "Unexpected what: " + msg);
             }
 
-            // Decide whether to load additional settings based on the new state. Start by seeing
-            // if we have headroom to load another setting.
-            if (mSettingsBeingLoaded.size() > 0 || mTimedOutSettings.size() > 1) {
-                // Don't load any more settings until one of the pending settings has completed.
-                // To reduce memory pressure, we want to be loading at most one setting (plus at
-                // most one timed-out setting) at a time. This means we'll be responsible for
-                // bringing in at most two services.
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "too many services already live for " + msg + ", " + this);
-                }
-                return;
+            if (mReloadStartMillis != 0 && mSettingsToLoad.isEmpty()
+                    && mSettingsBeingLoaded.isEmpty() && mTimedOutSettings.isEmpty()) {
+                logReloadStats();
+                mReloadStartMillis = 0;
             }
 
-            if (mReloadRequested && mSettingsToLoad.isEmpty() && mSettingsBeingLoaded.isEmpty()
-                    && mTimedOutSettings.isEmpty()) {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "reloading because idle and reload requesteed " + msg + ", " + this);
+            // Decide whether to load additional settings based on the new state, loading as
+            // many as we have headroom for.
+            while (true) {
+                if (mSettingsBeingLoaded.size() >= mMaxConcurrentLoads
+                        || mTimedOutSettings.size() > mMaxConcurrentLoads) {
+                    // Don't load any more settings until one of the pending settings has
+                    // completed. To reduce memory pressure, we want to be loading at most
+                    // mMaxConcurrentLoads settings (plus at most as many timed-out settings) at a
+                    // time. This means we'll be responsible for bringing in at most twice that
+                    // many services.
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "too many services already live for " + msg + ", " + this);
+                    }
+                    return;
                 }
-                // Reload requested, so must reload all settings
-                mSettingsToLoad.addAll(mSettings);
-                mReloadRequested = false;
-            }
 
-            // Remove the next setting to load from the queue, if any
-            Iterator<Setting> iter = mSettingsToLoad.iterator();
-            if (!iter.hasNext()) {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+                if (mReloadRequested && mSettingsToLoad.isEmpty()
+                        && mSettingsBeingLoaded.isEmpty() && mTimedOutSettings.isEmpty()) {
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "reloading because idle and reload requesteed " + msg + ", "
+                                + this);
+                    }
+                    // Reload requested, so must reload all settings
+                    mSettingsToLoad.addAll(mSettings);
+                    mReloadRequested = false;
+                    mReloadStartMillis = SystemClock.elapsedRealtime();
                 }
-                return;
-            }
-            Setting setting = iter.next();
-            iter.remove();
 
-            // Request the status value
-            setting.startService();
-            mSettingsBeingLoaded.add(setting);
+                // Remove the next setting to load from the queue, if any
+                Iterator<Setting> iter = mSettingsToLoad.iterator();
+                if (!iter.hasNext()) {
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+                    }
+                    return;
+                }
+                Setting setting = iter.next();
+                iter.remove();
+
+                // Request the status value
+                setting.startService();
+                mSettingsBeingLoaded.add(setting);
 
-            // Ensure that if receiving the status value takes too long, we start loading the
-            // next value anyway
-            Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
-            sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+                // Ensure that if receiving the status value takes too long, we start loading the
+                // next value anyway
+                Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
+                sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
 
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "handleMessage end " + msg + ", " + this
-                        + ", started loading " + setting);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleMessage end " + msg + ", " + this
+                            + ", started loading " + setting);
+                }
+            }
+        }
+
+        /**
+         * Logs how long the last reload took, and the load times of each setting so far.
+         */
+        private void logReloadStats() {
+            if (!Log.isLoggable(TAG, Log.DEBUG)) {
+                return;
+            }
+            Log.d(TAG, "Reloaded " + mSettings.size() + " settings in "
+                    + (SystemClock.elapsedRealtime() - mReloadStartMillis) + " millis, "
+                    + mMaxConcurrentLoads + " at a time");
+            for (Setting setting : mSettings) {
+                Log.d(TAG, "  " + setting.setting.className + ": loads=" + setting.loadCount
+                        + " timeouts=" + setting.timeoutCount
+                        + " last=" + setting.lastElapsedMillis
+                        + " max=" + setting.maxElapsedMillis
+                        + " avg=" + (setting.loadCount > 0
+                                ? setting.totalElapsedMillis / setting.loadCount : 0));
             }
         }
 
@@ -392,6 +464,13 @@ class SettingsInjector {
         public final Preference preference;
         public long startMillis;
 
+        // Load time statistics, only touched on the main thread.
+        public int loadCount;
+        public int timeoutCount;
+        public long lastElapsedMillis;
+        public long maxElapsedMillis;
+        public long totalElapsedMillis;
+
         private Setting(InjectedSetting setting, Preference preference) {
             this.setting = setting;
             this.preference = preference;
@@ -434,6 +513,10 @@ class SettingsInjector {
                     }
                     preference.setSummary(null);
                     preference.setEnabled(enabled);
+                    final String key = getStatusCacheKey(setting);
+                    if (mStatusCache.getBoolean(key, true) != enabled) {
+                        mStatusCache.edit().putBoolean(key, enabled).apply();
+                    }
                     mHandler.sendMessage(
                             mHandler.obtainMessage(WHAT_RECEIVED_STATUS, Setting.this));
                 }
@@ -446,10 +529,8 @@ class SettingsInjector {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, setting + ": sending update intent: " + intent
                         + ", handler: " + handler);
-                startMillis = SystemClock.elapsedRealtime();
-            } else {
-                startMillis = 0;
             }
+            startMillis = SystemClock.elapsedRealtime();
 
             // Start the service, making sure that this is attributed to the current user rather
             // than the system user.
@@ -461,9 +542,13 @@ class SettingsInjector {
             return end - startMillis;
         }
 
-        public void maybeLogElapsedTime() {
-            if (Log.isLoggable(TAG, Log.DEBUG) && startMillis != 0) {
-                long elapsed = getElapsedTime();
+        public void recordElapsedTime() {
+            long elapsed = getElapsedTime();
+            loadCount++;
+            lastElapsedMillis = elapsed;
+            maxElapsedMillis = Math.max(maxElapsedMillis, elapsed);
+            totalElapsedMillis += elapsed;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, this + " update took " + elapsed + " millis");
             }
         }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import android.content.Context;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Cache of the {@link NetworkStatsHistory} read through an
+ * {@link INetworkStatsSession}, shared by the {@link ChartDataLoader} of a
+ * data usage screen, so that switching between apps and cycles doesn't read
+ * the same history again. Histories are kept for one stats poll interval,
+ * and dropped by {@link #invalidate()} once fresher stats are known to exist.
+ */
+public class ChartDataCache {
+    /** Default of {@link Settings.Global#NETSTATS_POLL_INTERVAL}. */
+    private static final long DEFAULT_MAX_AGE = 30 * MINUTE_IN_MILLIS;
+
+    private static class Key {
+        final NetworkTemplate template;
+        final int[] uids;
+        final int set;
+        final int fields;
+
+        Key(NetworkTemplate template, int[] uids, int set, int fields) {
+            this.template = template;
+            this.uids = uids;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return Objects.equals(template, other.template) && Arrays.equals(uids, other.uids)
+                    && set == other.set && fields == other.fields;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(template, Arrays.hashCode(uids), set, fields);
+        }
+    }
+
+    private static class Entry {
+        final NetworkStatsHistory history;
+        final long time;
+
+        Entry(NetworkStatsHistory history, long time) {
+            this.history = history;
+            this.time = time;
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+    private final long mMaxAge;
+
+    // Synchronize on this for the following.
+    private final HashMap<Key, Entry> mEntries = new HashMap<Key, Entry>();
+
+    public ChartDataCache(Context context, INetworkStatsSession session) {
+        mSession = session;
+        mMaxAge = Settings.Global.getLong(context.getContentResolver(),
+                Settings.Global.NETSTATS_POLL_INTERVAL, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Drop every cached history, for example after forcing a stats poll.
+     */
+    public synchronized void invalidate() {
+        mEntries.clear();
+    }
+
+    /**
+     * Return the history of the given network. The returned history is
+     * shared and must not be modified.
+     */
+    public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields)
+            throws RemoteException {
+        final Key key = new Key(template, null, SET_ALL, fields);
+        NetworkStatsHistory history = get(key);
+        if (history == null) {
+            history = mSession.getHistoryForNetwork(template, fields);
+            put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * Return the combined history of the given UIDs in the given set. The
+     * history of each UID is cached too, so that apps sharing UIDs don't read
+     * them again. The returned history is shared and must not be modified.
+     */
+    public NetworkStatsHistory getHistoryForUids(NetworkTemplate template, int[] uids, int set,
+            int fields) throws RemoteException {
+        final int[] sortedUids = uids.clone();
+        Arrays.sort(sortedUids);
+        if (sortedUids.length == 1) {
+            return getHistoryForUid(template, sortedUids[0], set, fields);
+        }
+
+        final Key key = new Key(template, sortedUids, set, fields);
+        NetworkStatsHistory history = get(key);
+        if (history == null) {
+            for (int uid : sortedUids) {
+                final NetworkStatsHistory uidHistory = getHistoryForUid(
+                        template, uid, set, fields);
+                if (history == null) {
+                    history = new NetworkStatsHistory(uidHistory.getBucketDuration());
+                }
+                history.recordEntireHistory(uidHistory);
+            }
+            put(key, history);
+        }
+        return history;
+    }
+
+    private NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set,
+            int fields) throws RemoteException {
+        final Key key = new Key(template, new int[] { uid }, set, fields);
+        NetworkStatsHistory history = get(key);
+        if (history == null) {
+            history = mSession.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            put(key, history);
+        }
+        return history;
+    }
+
+    private synchronized NetworkStatsHistory get(Key key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.time > mMaxAge) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.history;
+    }
+
+    private synchronized void put(Key key, NetworkStatsHistory history) {
+        mEntries.put(key, new Entry(history, SystemClock.elapsedRealtime()));
+    }
+}
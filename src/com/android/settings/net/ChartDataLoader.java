@@ -18,14 +18,12 @@ package com.android.settings.net;
 
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
-import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
 import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
-import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
@@ -34,14 +32,15 @@ import android.os.RemoteException;
 import com.android.settings.DataUsageSummary.AppItem;
 
 /**
- * Loader for historical chart data for both network and UID details.
+ * Loader for historical chart data for both network and UID details, read
+ * through a {@link ChartDataCache} shared by the loaders of a screen.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
-    private final INetworkStatsSession mSession;
+    private final ChartDataCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -56,9 +55,9 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
-    public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public ChartDataLoader(Context context, ChartDataCache cache, Bundle args) {
         super(context);
-        mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -86,20 +85,21 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = mCache.getHistoryForNetwork(template, fields);
 
         if (app != null) {
             // load stats for current uid and template
             final int size = app.uids.size();
-            for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
-            }
-
             if (size > 0) {
+                final int[] uids = new int[size];
+                for (int i = 0; i < size; i++) {
+                    uids[i] = app.uids.keyAt(i);
+                }
+                data.detailDefault = mCache.getHistoryForUids(
+                        template, uids, SET_DEFAULT, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                data.detailForeground = mCache.getHistoryForUids(
+                        template, uids, SET_FOREGROUND, FIELD_RX_BYTES | FIELD_TX_BYTES);
+
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
@@ -124,22 +124,4 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         super.onReset();
         cancelLoad();
     }
-
-    /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
-     */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
-        }
-    }
 }
@@ -16,13 +16,8 @@
 
 package com.android.settings.net;
 
-import android.app.AppGlobals;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.IPackageManager;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
@@ -30,12 +25,11 @@ import android.net.ConnectivityManager;
 import android.net.TrafficStats;
 import android.os.UserManager;
 import android.os.UserHandle;
-import android.os.RemoteException;
 import android.text.TextUtils;
-import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.settings.R;
+import com.android.settings.UidLabelCache;
 import com.android.settings.Utils;
 
 /**
@@ -150,47 +144,34 @@ public class UidDetailProvider {
         }
 
         // otherwise fall back to using packagemanager labels
-        final String[] packageNames = pm.getPackagesForUid(uid);
-        final int length = packageNames != null ? packageNames.length : 0;
-        try {
-            final int userId = UserHandle.getUserId(uid);
-            UserHandle userHandle = new UserHandle(userId);
-            IPackageManager ipm = AppGlobals.getPackageManager();
-            if (length == 1) {
-                final ApplicationInfo info = ipm.getApplicationInfo(packageNames[0],
-                        0 /* no flags */, userId);
-                if (info != null) {
-                    detail.label = info.loadLabel(pm).toString();
-                    detail.icon = um.getBadgedIconForUser(info.loadIcon(pm),
-                            new UserHandle(userId));
+        final UidLabelCache.Info info = UidLabelCache.getInstance(mContext).get(uid);
+        final int length = info.packages != null ? info.packages.length : 0;
+        final UserHandle userHandle = new UserHandle(UserHandle.getUserId(uid));
+        if (length == 1) {
+            if (info.label != null) {
+                detail.label = info.label;
+                final Drawable icon = info.newIcon(res);
+                if (icon != null) {
+                    detail.icon = um.getBadgedIconForUser(icon, userHandle);
                 }
-            } else if (length > 1) {
-                detail.detailLabels = new CharSequence[length];
-                detail.detailContentDescriptions = new CharSequence[length];
-                for (int i = 0; i < length; i++) {
-                    final String packageName = packageNames[i];
-                    final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
-                    final ApplicationInfo appInfo = ipm.getApplicationInfo(packageName,
-                            0 /* no flags */, userId);
-
-                    if (appInfo != null) {
-                        detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
-                        detail.detailContentDescriptions[i] = um.getBadgedLabelForUser(
-                                detail.detailLabels[i], userHandle);
-                        if (packageInfo.sharedUserLabel != 0) {
-                            detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
-                                    packageInfo.applicationInfo).toString();
-                            detail.icon = um.getBadgedIconForUser(appInfo.loadIcon(pm), userHandle);
-                        }
-                    }
+            }
+        } else if (length > 1) {
+            detail.detailLabels = new CharSequence[length];
+            detail.detailContentDescriptions = new CharSequence[length];
+            for (int i = 0; i < length; i++) {
+                detail.detailLabels[i] = info.packageLabels[i];
+                detail.detailContentDescriptions[i] = um.getBadgedLabelForUser(
+                        detail.detailLabels[i], userHandle);
+            }
+            if (info.label != null) {
+                detail.label = info.label;
+                final Drawable icon = info.newIcon(res);
+                if (icon != null) {
+                    detail.icon = um.getBadgedIconForUser(icon, userHandle);
                 }
             }
-            detail.contentDescription = um.getBadgedLabelForUser(detail.label, userHandle);
-        } catch (NameNotFoundException e) {
-            Log.w(TAG, "Error while building UI detail for uid "+uid, e);
-        } catch (RemoteException e) {
-            Log.w(TAG, "Error while building UI detail for uid "+uid, e);
         }
+        detail.contentDescription = um.getBadgedLabelForUser(detail.label, userHandle);
 
         if (TextUtils.isEmpty(detail.label)) {
             detail.label = Integer.toString(uid);
@@ -27,11 +27,15 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -46,17 +50,30 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.text.Normalizer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_RANK;
@@ -84,6 +101,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.MetaColumns;
 
 public class Index {
 
@@ -109,7 +127,7 @@ public class Index {
     public static final String ENTRIES_SEPARATOR = "|";
 
     // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
-    private static final String[] SELECT_COLUMNS = new String[] {
+    static final String[] SELECT_COLUMNS = new String[] {
             IndexColumns.DATA_RANK,               // 0
             IndexColumns.DATA_TITLE,              // 1
             IndexColumns.DATA_SUMMARY_ON,         // 2
@@ -126,13 +144,37 @@ public class Index {
             IndexColumns.DATA_KEY_REF             // 13
     };
 
-    private static final String[] MATCH_COLUMNS_PRIMARY = {
+    // If you change the order of columns here, you SHOULD change IndexRow.bind()
+    private static final String INSERT_ROW_SQL =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX + " (" +
+                    IndexColumns.DOCID + ", " +
+                    IndexColumns.LOCALE + ", " +
+                    IndexColumns.DATA_RANK + ", " +
+                    IndexColumns.DATA_TITLE + ", " +
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_ON + ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+                    IndexColumns.DATA_ENTRIES + ", " +
+                    IndexColumns.DATA_KEYWORDS + ", " +
+                    IndexColumns.CLASS_NAME + ", " +
+                    IndexColumns.SCREEN_TITLE + ", " +
+                    IndexColumns.INTENT_ACTION + ", " +
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +
+                    IndexColumns.ICON + ", " +
+                    IndexColumns.ENABLED + ", " +
+                    IndexColumns.DATA_KEY_REF + ", " +
+                    IndexColumns.USER_ID + ", " +
+                    IndexColumns.PROVIDER_KEY +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // The primary columns SHOULD come first, see MATCH_COLUMNS_PRIMARY_COUNT
+    static final String[] MATCH_COLUMNS = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
-            IndexColumns.DATA_KEYWORDS
-    };
-
-    private static final String[] MATCH_COLUMNS_SECONDARY = {
+            IndexColumns.DATA_KEYWORDS,
             IndexColumns.DATA_SUMMARY_ON,
             IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
             IndexColumns.DATA_SUMMARY_OFF,
@@ -140,11 +182,28 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
+    static final int MATCH_COLUMNS_PRIMARY_COUNT = 3;
+
+    // Relevance weight of a hit in each of the MATCH_COLUMNS
+    private static final int[] MATCH_COLUMNS_WEIGHTS = {
+            4, 4, 2, 1, 1, 1, 1, 1
+    };
+
+    // Number of results delivered first by a SearchSession, before the whole list is sorted
+    private static final int SEARCH_SESSION_TOP_HITS = 10;
+
+    // Selects SELECT_COLUMNS, then MATCH_COLUMNS and last the matchinfo of the row
+    private static final String SEARCH_SQL = buildSearchSQL();
+
     // Max number of saved search queries (who will be used for proposing suggestions)
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
+    private static final String[] SUGGESTIONS_COLUMNS = new String[] {
+            IndexDatabaseHelper.SavedQueriesColums.QUERY
+    };
+
     private static final String BASE_AUTHORITY = "com.android.settings";
 
     private static final String EMPTY = "";
@@ -160,6 +219,20 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Max number of providers being parsed ahead of the database writer
+    private static final int PARSER_WINDOW = Runtime.getRuntime().availableProcessors();
+    // Idle parser threads go away after this delay
+    private static final long PARSER_KEEP_ALIVE_MILLIS = 1000;
+
+    // APK entries whose CRC makes the fingerprint of a package
+    private static final String[] PACKAGE_FINGERPRINT_ENTRIES = {
+            "resources.arsc",
+            "classes.dex"
+    };
+
+    private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
     private static Index sInstance;
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
@@ -200,8 +273,206 @@ public class Index {
         }
     }
 
+    /**
+     * Interface definition for receiving the results of a {@link SearchSession}
+     */
+    public interface OnSearchResultsListener {
+        /**
+         * Called on the main thread with the results of a query. The best results may be
+         * delivered first with complete set to false, followed by all the results. The
+         * listener owns the cursor.
+         */
+        void onSearchResults(String query, Cursor cursor, boolean complete);
+    }
+
+    /**
+     * Search the Index as the user types.
+     *
+     * Starting a search abandons the previous one, including its SQLite work. When the new
+     * query extends the last completed one, its results are narrowed in memory instead of
+     * querying the database again.
+     */
+    public class SearchSession {
+        private final OnSearchResultsListener mListener;
+        private SearchTask mTask;
+        private String mLastQuery;
+        private List<SearchHit> mLastHits;
+
+        private SearchSession(OnSearchResultsListener listener) {
+            mListener = listener;
+        }
+
+        /**
+         * Start searching for the given query. Must be called on the main thread.
+         */
+        public void search(String query) {
+            cancel();
+            final List<SearchHit> previousHits = (mLastQuery != null && query != null
+                    && query.startsWith(mLastQuery)) ? mLastHits : null;
+            mTask = new SearchTask(query, previousHits);
+            mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        /**
+         * Abandon the current search, if any. Must be called on the main thread.
+         */
+        public void cancel() {
+            if (mTask != null) {
+                mTask.cancelSearch();
+                mTask = null;
+            }
+        }
+
+        private class SearchTask extends AsyncTask<Void, Cursor, Cursor> {
+            private final String mQuery;
+            private final List<SearchHit> mPreviousHits;
+            private final CancellationSignal mSignal = new CancellationSignal();
+            // Null unless the query had tokens, so that later queries never narrow from it
+            private List<SearchHit> mHits;
+
+            public SearchTask(String query, List<SearchHit> previousHits) {
+                mQuery = query;
+                mPreviousHits = previousHits;
+            }
+
+            public void cancelSearch() {
+                cancel(false);
+                mSignal.cancel();
+            }
+
+            @Override
+            protected Cursor doInBackground(Void... params) {
+                final List<String> tokens = tokenizeQuery(mQuery);
+                List<SearchHit> hits = (mPreviousHits != null)
+                        ? narrowHits(mPreviousHits, tokens) : null;
+                if (hits == null) {
+                    try {
+                        hits = queryHits(tokens, mSignal);
+                    } catch (OperationCanceledException e) {
+                        return null;
+                    }
+                }
+                if (isCancelled()) {
+                    return null;
+                }
+
+                if (hits.size() > SEARCH_SESSION_TOP_HITS) {
+                    publishProgress(buildResultsCursor(
+                            selectTopHits(hits, SEARCH_SESSION_TOP_HITS)));
+                }
+                Collections.sort(hits);
+                if (tokens.size() > 0) {
+                    mHits = hits;
+                }
+                return buildResultsCursor(hits);
+            }
+
+            @Override
+            protected void onProgressUpdate(Cursor... cursors) {
+                if (isCancelled()) {
+                    cursors[0].close();
+                    return;
+                }
+                mListener.onSearchResults(mQuery, cursors[0], false);
+            }
+
+            @Override
+            protected void onPostExecute(Cursor cursor) {
+                if (mTask == this) {
+                    mTask = null;
+                }
+                if (cursor == null) {
+                    return;
+                }
+                mLastQuery = (mHits != null) ? mQuery : null;
+                mLastHits = mHits;
+                mListener.onSearchResults(mQuery, cursor, true);
+            }
+
+            @Override
+            protected void onCancelled(Cursor cursor) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A private class to describe one row of the Index database, ready to be inserted
+     */
+    private static class IndexRow {
+        public int docId;
+        public String locale;
+        public int rank;
+        public String title;
+        public String normalizedTitle;
+        public String summaryOn;
+        public String normalizedSummaryOn;
+        public String summaryOff;
+        public String normalizedSummaryOff;
+        public String entries;
+        public String keywords;
+        public String className;
+        public String screenTitle;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+        public int iconResId;
+        public boolean enabled;
+        public String key;
+        public int userId;
+        public String providerKey;
+
+        // The binding order should match the order of the columns in INSERT_ROW_SQL !
+        public void bind(SQLiteStatement statement) {
+            statement.clearBindings();
+            statement.bindLong(1, docId);
+            bindString(statement, 2, locale);
+            statement.bindLong(3, rank);
+            bindString(statement, 4, title);
+            bindString(statement, 5, normalizedTitle);
+            bindString(statement, 6, summaryOn);
+            bindString(statement, 7, normalizedSummaryOn);
+            bindString(statement, 8, summaryOff);
+            bindString(statement, 9, normalizedSummaryOff);
+            bindString(statement, 10, entries);
+            bindString(statement, 11, keywords);
+            bindString(statement, 12, className);
+            bindString(statement, 13, screenTitle);
+            bindString(statement, 14, intentAction);
+            bindString(statement, 15, intentTargetPackage);
+            bindString(statement, 16, intentTargetClass);
+            statement.bindLong(17, iconResId);
+            statement.bindLong(18, enabled ? 1 : 0);
+            bindString(statement, 19, key);
+            statement.bindLong(20, userId);
+            bindString(statement, 21, providerKey);
+        }
+
+        private static void bindString(SQLiteStatement statement, int index, String value) {
+            if (value != null) {
+                statement.bindString(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+    private final SavedQueriesCache mSavedQueries =
+            new SavedQueriesCache((int) MAX_SAVED_SEARCH_QUERY);
+    private final List<SavedQueriesCache.Entry> mPendingSavedQueries =
+            new ArrayList<SavedQueriesCache.Entry>();
+    private boolean mIsSavingQueries;
+    // Package name to { last update time, package fingerprint }
+    private final Map<String, long[]> mPackageFingerprints = new HashMap<String, long[]>();
+    private final IndexMetrics mMetrics = new IndexMetrics();
+    // Parses the XML resources of the providers, in parallel
+    private final ThreadPoolExecutor mParserExecutor;
+    // Runs the code of the local providers, one provider at a time
+    private final ThreadPoolExecutor mProviderExecutor;
     private Context mContext;
     private final String mBaseAuthority;
 
@@ -220,6 +491,23 @@ public class Index {
     public Index(Context context, String baseAuthority) {
         mContext = context;
         mBaseAuthority = baseAuthority;
+        mParserExecutor = newParserExecutor(PARSER_WINDOW, " parser #");
+        mProviderExecutor = newParserExecutor(1, " provider #");
+    }
+
+    private static ThreadPoolExecutor newParserExecutor(int threads, final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                PARSER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, LOG_TAG + name + (++mCount));
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     public void setContext(Context context) {
@@ -230,70 +518,255 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * Return the indexing and search metrics collected since this Index was created.
+     */
+    public IndexMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Search the Index for the given query.
+     *
+     * Every token of the query must prefix match at least one of the searchable columns. The
+     * rows matching all the tokens in the primary columns come first, then the rows matching in
+     * the secondary columns. Each group is ordered by rank and then by relevance.
+     *
+     * See {@link SearchSession} for searching as the user types.
+     */
     public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
+        final List<SearchHit> hits = queryHits(tokenizeQuery(query), null);
+        Collections.sort(hits);
+        return buildResultsCursor(hits);
+    }
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+    /**
+     * Create a session for searching as the user types. Results are delivered to the listener
+     * on the main thread.
+     */
+    public SearchSession createSearchSession(OnSearchResultsListener listener) {
+        return new SearchSession(listener);
+    }
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+    private List<SearchHit> queryHits(List<String> tokens, CancellationSignal signal) {
+        final List<SearchHit> hits = new ArrayList<SearchHit>();
+        final int tokenCount = tokens.size();
+        if (tokenCount == 0) {
+            return hits;
+        }
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        final String match = buildSearchMatchString(tokens);
+        Log.d(LOG_TAG, "Search query: " + match);
 
-        return new MergeCursor(cursors);
+        int queryLength = 0;
+        for (int n = 0; n < tokenCount; n++) {
+            queryLength += tokens.get(n).length();
+        }
+        final long start = System.nanoTime();
+
+        // The SQL never changes so the compiled statement is reused from the connection cache
+        final Cursor cursor = getReadableDatabase().rawQuery(SEARCH_SQL,
+                new String[] { match, Locale.getDefault().toString() }, signal);
+        try {
+            while (cursor.moveToNext()) {
+                final SearchHit hit = SearchHit.create(cursor, tokenCount);
+                if (hit != null) {
+                    hits.add(hit);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        mMetrics.recordQuery(queryLength, System.nanoTime() - start, hits.size());
+        return hits;
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+    private Cursor buildResultsCursor(List<SearchHit> hits) {
+        final long start = System.nanoTime();
+        final MatrixCursor result = new MatrixCursor(SELECT_COLUMNS, hits.size());
+        final int count = hits.size();
+        for (int n = 0; n < count; n++) {
+            result.addRow(hits.get(n).values);
+        }
+        mMetrics.recordMaterialization(System.nanoTime() - start, count);
+        return result;
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Return the best hits, sorted, without sorting the whole list.
+     */
+    /**
+     * Return the hits matching the tokens of a query that extends the one they were found
+     * for, without going back to the database, or null if the query has no tokens. Such a
+     * query matches nothing in the database, while every hit would match it.
+     */
+    static List<SearchHit> narrowHits(List<SearchHit> hits, List<String> tokens) {
+        if (tokens.size() == 0) {
+            return null;
+        }
+        final List<SearchHit> result = new ArrayList<SearchHit>();
+        final int count = hits.size();
+        for (int n = 0; n < count; n++) {
+            final SearchHit hit = hits.get(n).narrow(tokens);
+            if (hit != null) {
+                result.add(hit);
+            }
+        }
+        return result;
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    private static List<SearchHit> selectTopHits(List<SearchHit> hits, int count) {
+        final PriorityQueue<SearchHit> queue = new PriorityQueue<SearchHit>(count + 1,
+                Collections.<SearchHit>reverseOrder());
+        final int size = hits.size();
+        for (int n = 0; n < size; n++) {
+            queue.add(hits.get(n));
+            if (queue.size() > count) {
+                queue.poll();
+            }
+        }
+        final List<SearchHit> result = new ArrayList<SearchHit>(queue);
+        Collections.sort(result);
+        return result;
+    }
 
+    static List<String> tokenizeQuery(String query) {
+        final List<String> tokens = new ArrayList<String>();
         if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+            return tokens;
+        }
+        final int length = query.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isTokenChar = (n < length) && isFtsTokenChar(query.charAt(n));
+            if (isTokenChar && start < 0) {
+                start = n;
+            } else if (!isTokenChar && start >= 0) {
+                tokens.add(query.substring(start, n));
+                start = -1;
+            }
         }
+        return tokens;
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    /**
+     * Return true if the character is part of a token for the "simple" FTS tokenizer, which
+     * keeps every non ASCII character. Queries and hits are split with it so that they agree.
+     */
+    private static boolean isFtsTokenChar(char c) {
+        return c >= 0x80 || Character.isLetterOrDigit(c);
+    }
 
+    /**
+     * Build the MATCH argument. Tokens only contain letters, digits and non ASCII characters,
+     * so they cannot be mistaken for FTS operators or quotes. There is one phrase per token and
+     * per column, in that order, which is what {@link SearchHit} relies on for reading the
+     * matchinfo.
+     */
+    private static String buildSearchMatchString(List<String> tokens) {
+        final StringBuilder sb = new StringBuilder();
+        final int count = tokens.size();
+        for (int n = 0; n < count; n++) {
+            final String token = tokens.get(n);
+            for (int i = 0; i < MATCH_COLUMNS.length; i++) {
+                if (sb.length() > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append(MATCH_COLUMNS[i]);
+                sb.append(":");
+                sb.append(token);
+                sb.append("*");
+            }
+        }
         return sb.toString();
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
+    private static String buildSearchSQL() {
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            sb.append(SELECT_COLUMNS[n]);
+            sb.append(", ");
+        }
+        for (int n = 0; n < MATCH_COLUMNS.length; n++) {
+            sb.append(MATCH_COLUMNS[n]);
+            sb.append(", ");
+        }
+        sb.append("matchinfo(");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(", 'pcx')");
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ? AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        return sb.toString();
+    }
+
+    /**
+     * Return the saved queries starting with the given query, most recent first. Saved queries
+     * are read from the database only once, then served from memory.
+     */
+    public Cursor getSuggestions(String query) {
+        ensureSavedQueriesLoaded();
+
+        final MatrixCursor cursor = new MatrixCursor(SUGGESTIONS_COLUMNS);
+        final List<String> suggestions =
+                mSavedQueries.getSuggestions(query, MAX_PROPOSED_SUGGESTIONS);
+        final int count = suggestions.size();
+        for (int n = 0; n < count; n++) {
+            cursor.addRow(new Object[] { suggestions.get(n) });
+        }
+        return cursor;
+    }
+
+    private void ensureSavedQueriesLoaded() {
+        if (mSavedQueries.isLoaded()) {
+            return;
+        }
+        // Do not hold the cache lock while reading so that saving a query never waits for us.
+        // Loading twice is harmless as the most recent timestamp of a query always wins.
+        Cursor cursor = null;
         try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+            cursor = getReadableDatabase().query(Tables.TABLE_SAVED_QUERIES,
+                    new String[] {
+                            IndexDatabaseHelper.SavedQueriesColums.QUERY,
+                            IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP },
+                    null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                mSavedQueries.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot load saved Search queries", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mSavedQueries.setLoaded();
+    }
+
+    /**
+     * Save a query for proposing it later as a suggestion. The query is available right away
+     * for suggestions and written to the database in the background, batched with the other
+     * queries saved in the meantime.
+     */
+    public void addSavedQuery(String query) {
+        if (query == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        mSavedQueries.put(query, now);
+
+        synchronized (mPendingSavedQueries) {
+            mPendingSavedQueries.add(new SavedQueriesCache.Entry(query, now));
+            if (!mIsSavingQueries) {
+                mIsSavingQueries = true;
+                new SaveSearchQueryTask().execute();
+            }
         }
     }
 
@@ -495,6 +968,24 @@ public class Index {
         updateInternal();
     }
 
+    /**
+     * Index the Settings own indexables for the current default locale, on the calling thread.
+     *
+     * Only used for generating the prebuilt Index database, see {@link IndexDatabaseHelper}.
+     * Other packages are left out as they are indexed on the device.
+     */
+    public void updateOwnIndexablesAndWait() {
+        final String packageName = mContext.getPackageName();
+        final UpdateData data;
+        synchronized (mDataToProcess) {
+            addIndexablesFromRemoteProvider(packageName, mBaseAuthority);
+            addNonIndexablesKeysFromRemoteProvider(packageName, mBaseAuthority);
+            data = mDataToProcess.copy();
+            mDataToProcess.clear();
+        }
+        new UpdateIndexTask().doInBackground(data);
+    }
+
     private SQLiteDatabase getReadableDatabase() {
         return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
     }
@@ -637,80 +1128,42 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
-        }
-        return sb.toString();
-    }
-
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ");
-        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
-            sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
-                sb.append(", ");
-            }
-        }
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_PREFS_INDEX);
-        sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
+    private List<IndexRow> buildRows(String localeStr, SearchIndexableData data,
+            Map<String, List<String>> nonIndexableKeys) {
+        final List<IndexRow> rows = new ArrayList<IndexRow>();
+        indexOneSearchIndexableData(rows, localeStr, data,
+                getResourceNonIndexableKeys(data, nonIndexableKeys));
+        return rows;
     }
 
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
-        sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
-        sb.append(IndexColumns.ENABLED);
-        sb.append(" = 1");
-        return sb.toString();
-    }
-
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
-        final String value = query + "*";
-        StringBuilder sb = new StringBuilder();
-        final int count = columnNames.length;
-        for (int n = 0; n < count; n++) {
-            sb.append(columnNames[n]);
-            sb.append(":");
-            sb.append(value);
-            if (n < count - 1) {
-                sb.append(" OR ");
-            }
-        }
-        return sb.toString();
-    }
-
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    /**
+     * Index one piece of data. The non indexable keys are the ones returned by
+     * {@link #getResourceNonIndexableKeys(SearchIndexableData, Map)} for it, so that providers
+     * are only asked for them once.
+     *
+     * @return true if some rows come from the raw data of a local provider. This data is
+     *         computed at runtime and is not covered by the fingerprint of the provider.
+     */
+    private boolean indexOneSearchIndexableData(List<IndexRow> rows, String localeStr,
+            SearchIndexableData data, List<String> nonIndexableKeys) {
+        final String providerKey = getProviderKey(data);
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            return indexOneResource(rows, localeStr, (SearchIndexableResource) data,
+                    nonIndexableKeys, providerKey);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data, providerKey);
         }
+        return false;
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
-                             SearchIndexableRaw raw) {
+    private void indexOneRaw(List<IndexRow> rows, String localeStr,
+                             SearchIndexableRaw raw, String providerKey) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -725,7 +1178,8 @@ public class Index {
                 raw.intentTargetClass,
                 raw.enabled,
                 raw.key,
-                raw.userId);
+                raw.userId,
+                providerKey);
     }
 
     private static boolean isIndexableClass(final Class<?> clazz) {
@@ -743,52 +1197,48 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private boolean indexOneResource(List<IndexRow> rows, String localeStr,
+            SearchIndexableResource sir, List<String> resourceNonIndexableKeys,
+            String providerKey) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
-            return;
+            return false;
         }
 
         final List<String> nonIndexableKeys = new ArrayList<String>();
 
-        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
-            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
-            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
-                nonIndexableKeys.addAll(resNonIndxableKeys);
-            }
+        if (resourceNonIndexableKeys != null && resourceNonIndexableKeys.size() > 0) {
+            nonIndexableKeys.addAll(resourceNonIndexableKeys);
+        }
 
-            indexFromResource(sir.context, database, localeStr,
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    nonIndexableKeys, providerKey);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
-                return;
+                return false;
             }
 
             final Class<?> clazz = getIndexableClass(sir.className);
             if (clazz == null) {
                 Log.d(LOG_TAG, "SearchIndexableResource '" + sir.className +
                         "' should implement the " + Indexable.class.getName() + " interface!");
-                return;
+                return false;
             }
 
             // Will be non null only for a Local provider implementing a
             // SEARCH_INDEX_DATA_PROVIDER field
             final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
             if (provider != null) {
-                List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
-                if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
-                    nonIndexableKeys.addAll(providerNonIndexableKeys);
-                }
-
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                return indexFromProvider(mContext, rows, localeStr, provider, sir.className,
+                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys, providerKey);
             }
         }
+        return false;
     }
 
     private Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
@@ -811,10 +1261,156 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    /**
+     * Return the key identifying the provider of some indexable data. All the rows coming from
+     * the same provider share this key so that they can be replaced together.
+     */
+    private String getProviderKey(SearchIndexableData data) {
+        final StringBuilder sb = new StringBuilder(getPackageName(data));
+        sb.append("/");
+        sb.append(data.className);
+        if (data instanceof SearchIndexableResource) {
+            sb.append("/");
+            sb.append(((SearchIndexableResource) data).xmlResId);
+        }
+        return sb.toString();
+    }
+
+    private String getPackageName(SearchIndexableData data) {
+        return TextUtils.isEmpty(data.packageName) ? mContext.getPackageName() : data.packageName;
+    }
+
+    /**
+     * Return a fingerprint of the content of a package. It only depends on the package itself
+     * and not on the device it is installed on, so that the fingerprints stored in a prebuilt
+     * Index database are still valid on the device. See {@link IndexDatabaseHelper}.
+     */
+    private long getPackageFingerprint(String packageName) {
+        final PackageInfo info;
+        try {
+            info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(LOG_TAG, "Cannot find package: " + packageName);
+            return 0;
+        }
+
+        synchronized (mPackageFingerprints) {
+            final long[] cached = mPackageFingerprints.get(packageName);
+            if (cached != null && cached[0] == info.lastUpdateTime) {
+                return cached[1];
+            }
+        }
+
+        long hash = hash(FINGERPRINT_SEED, info.versionCode);
+        ZipFile zipFile = null;
+        try {
+            // Only reads the central directory of the APK
+            zipFile = new ZipFile(info.applicationInfo.sourceDir);
+            for (String name : PACKAGE_FINGERPRINT_ENTRIES) {
+                final ZipEntry entry = zipFile.getEntry(name);
+                if (entry != null) {
+                    hash = hash(hash, entry.getCrc());
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read package: " + info.applicationInfo.sourceDir);
+            hash = hash(hash, info.lastUpdateTime);
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        synchronized (mPackageFingerprints) {
+            mPackageFingerprints.put(packageName, new long[] { info.lastUpdateTime, hash });
+        }
+        return hash;
+    }
+
+    /**
+     * Return the non indexable keys of some data: the ones of its package for a resource, or
+     * the ones returned by its local provider. This calls the provider, so do it once.
+     */
+    private List<String> getResourceNonIndexableKeys(SearchIndexableData data,
+            Map<String, List<String>> nonIndexableKeysFromResource) {
+        if (!(data instanceof SearchIndexableResource)) {
+            return null;
+        }
+        final SearchIndexableResource sir = (SearchIndexableResource) data;
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            return nonIndexableKeysFromResource.get(sir.packageName);
+        }
+        if (TextUtils.isEmpty(sir.className)) {
+            return null;
+        }
+        final Class<?> clazz = getIndexableClass(sir.className);
+        final Indexable.SearchIndexProvider provider =
+                (clazz != null) ? getSearchIndexProvider(clazz) : null;
+        return (provider != null) ? provider.getNonIndexableKeys(sir.context) : null;
+    }
+
+    /**
+     * Compute a fingerprint of everything that changes the rows produced by a provider: the
+     * content of its package, the locale, its description and its non indexable keys, as
+     * resolved for each data of the list.
+     */
+    private long computeFingerprint(String localeStr, List<SearchIndexableData> list,
+            List<List<String>> nonIndexableKeys) {
+        long hash = hash(FINGERPRINT_SEED, localeStr);
+
+        final int count = list.size();
+        for (int n = 0; n < count; n++) {
+            final SearchIndexableData data = list.get(n);
+
+            hash = hash(hash, getPackageFingerprint(getPackageName(data)));
+            hash = hash(hash, data.className);
+            hash = hash(hash, data.rank);
+            hash = hash(hash, data.iconResId);
+            hash = hash(hash, data.enabled ? 1 : 0);
+            hash = hash(hash, data.intentAction);
+            hash = hash(hash, data.intentTargetPackage);
+            hash = hash(hash, data.intentTargetClass);
+
+            if (data instanceof SearchIndexableResource) {
+                final SearchIndexableResource sir = (SearchIndexableResource) data;
+                hash = hash(hash, sir.xmlResId);
+                final List<String> keys = nonIndexableKeys.get(n);
+                final int keysCount = (keys != null) ? keys.size() : 0;
+                for (int i = 0; i < keysCount; i++) {
+                    hash = hash(hash, keys.get(i));
+                }
+            } else if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                hash = hash(hash, raw.locale.toString());
+                hash = hash(hash, raw.title);
+                hash = hash(hash, raw.summaryOn);
+                hash = hash(hash, raw.summaryOff);
+                hash = hash(hash, raw.entries);
+                hash = hash(hash, raw.keywords);
+                hash = hash(hash, raw.screenTitle);
+                hash = hash(hash, raw.key);
+                hash = hash(hash, raw.userId);
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        return hash(hash, (value != null) ? value.hashCode() : 0);
+    }
+
+    private static long hash(long hash, long value) {
+        return (hash ^ value) * FINGERPRINT_PRIME;
+    }
+
+    private void indexFromResource(Context context, List<IndexRow> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
-           List<String> nonIndexableKeys) {
+           List<String> nonIndexableKeys, String providerKey) {
 
         XmlResourceParser parser = null;
         try {
@@ -851,10 +1447,10 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
-                        key, -1 /* default user id */);
+                        key, -1 /* default user id */, providerKey);
             }
 
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -883,10 +1479,10 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, providerKey);
                 } else {
                     String summaryOn = getDataSummaryOn(context, attrs);
                     String summaryOff = getDataSummaryOff(context, attrs);
@@ -895,10 +1491,10 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, providerKey);
                 }
             }
 
@@ -911,16 +1507,20 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    /**
+     * @return true if the provider returned raw data, which only exists at runtime
+     */
+    private boolean indexFromProvider(Context context, List<IndexRow> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+            boolean enabled, List<String> nonIndexableKeys, String providerKey) {
 
         if (provider == null) {
             Log.w(LOG_TAG, "Cannot find provider: " + className);
-            return;
+            return false;
         }
 
         final List<SearchIndexableRaw> rawList = provider.getRawDataToIndex(context, enabled);
+        final boolean hasRawData = (rawList != null) && rawList.size() > 0;
 
         if (rawList != null) {
             final int rawSize = rawList.size();
@@ -936,7 +1536,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -951,7 +1551,8 @@ public class Index {
                         raw.intentTargetClass,
                         raw.enabled,
                         raw.key,
-                        raw.userId);
+                        raw.userId,
+                        providerKey);
             }
         }
 
@@ -972,20 +1573,21 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
-                        item.intentTargetClass, nonIndexableKeys);
+                        item.intentTargetClass, nonIndexableKeys, providerKey);
             }
         }
+        return hasRawData;
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexRow> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String providerKey) {
 
         final String updatedTitle = normalizeHyphen(title);
         final String updatedSummaryOn = normalizeHyphen(summaryOn);
@@ -995,12 +1597,12 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
                 rank, keywords, intentAction, intentTargetPackage, intentTargetClass, enabled,
-                key, userId);
+                key, userId, providerKey);
     }
 
     private static String normalizeHyphen(String input) {
@@ -1014,13 +1616,13 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexRow> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
             String className, String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String providerKey) {
 
         if (TextUtils.isEmpty(updatedTitle)) {
             return;
@@ -1032,29 +1634,30 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        final IndexRow row = new IndexRow();
+        row.docId = docId;
+        row.locale = locale;
+        row.rank = rank;
+        row.title = updatedTitle;
+        row.normalizedTitle = normalizedTitle;
+        row.summaryOn = updatedSummaryOn;
+        row.normalizedSummaryOn = normalizedSummaryOn;
+        row.summaryOff = updatedSummaryOff;
+        row.normalizedSummaryOff = normalizedSummaryOff;
+        row.entries = entries;
+        row.keywords = keywords;
+        row.className = className;
+        row.screenTitle = screenTitle;
+        row.intentAction = intentAction;
+        row.intentTargetPackage = intentTargetPackage;
+        row.intentTargetClass = intentTargetClass;
+        row.iconResId = iconResId;
+        row.enabled = enabled;
+        row.key = key;
+        row.userId = userId;
+        row.providerKey = providerKey;
+
+        rows.add(row);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1145,6 +1748,248 @@ public class Index {
         }
    }
 
+    /**
+     * A class to describe one search result with its ranking data
+     */
+    static class SearchHit implements Comparable<SearchHit> {
+        public final Object[] values;
+        public final String[] texts;
+        public final boolean primary;
+        public final int rank;
+        public final int relevance;
+
+        private SearchHit(Object[] values, String[] texts, boolean primary, int rank,
+                int relevance) {
+            this.values = values;
+            this.texts = texts;
+            this.primary = primary;
+            this.rank = rank;
+            this.relevance = relevance;
+        }
+
+        /**
+         * Create a hit from the current row of the cursor and its 'pcx' matchinfo, or return
+         * null if some tokens of the query do not match the row.
+         */
+        public static SearchHit create(Cursor cursor, int tokenCount) {
+            final byte[] matchInfo = cursor.getBlob(SELECT_COLUMNS.length + MATCH_COLUMNS.length);
+            final IntBuffer info =
+                    ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+            final int phraseCount = info.get(0);
+            final int columnCount = info.get(1);
+
+            final int[] phraseHits = new int[phraseCount];
+            for (int p = 0; p < phraseCount; p++) {
+                // Each phrase is restricted to one column so we can just sum them all
+                for (int c = 0; c < columnCount; c++) {
+                    phraseHits[p] += info.get(2 + 3 * (p * columnCount + c));
+                }
+            }
+
+            final Object[] values = new Object[SELECT_COLUMNS.length];
+            for (int n = 0; n < values.length; n++) {
+                switch (cursor.getType(n)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        values[n] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[n] = cursor.getLong(n);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[n] = cursor.getDouble(n);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[n] = cursor.getBlob(n);
+                        break;
+                    default:
+                        values[n] = cursor.getString(n);
+                        break;
+                }
+            }
+            final String[] texts = new String[MATCH_COLUMNS.length];
+            for (int n = 0; n < texts.length; n++) {
+                texts[n] = cursor.getString(SELECT_COLUMNS.length + n);
+            }
+            return create(values, texts, cursor.getInt(COLUMN_INDEX_RANK), phraseHits,
+                    tokenCount);
+        }
+
+        /**
+         * Match this hit against the tokens of a longer query without going back to the
+         * database. The words of the columns are compared the way the FTS simple tokenizer
+         * does it.
+         */
+        public SearchHit narrow(List<String> tokens) {
+            final int tokenCount = tokens.size();
+            final int[] phraseHits = new int[tokenCount * MATCH_COLUMNS.length];
+            for (int t = 0; t < tokenCount; t++) {
+                for (int c = 0; c < MATCH_COLUMNS.length; c++) {
+                    phraseHits[t * MATCH_COLUMNS.length + c] =
+                            countPrefixMatches(texts[c], tokens.get(t));
+                }
+            }
+            return create(values, texts, rank, phraseHits, tokenCount);
+        }
+
+        private static SearchHit create(Object[] values, String[] texts, int rank,
+                int[] phraseHits, int tokenCount) {
+            final boolean[] primaryMatch = new boolean[tokenCount];
+            final boolean[] anyMatch = new boolean[tokenCount];
+            int relevance = 0;
+            for (int p = 0; p < phraseHits.length; p++) {
+                final int hits = phraseHits[p];
+                if (hits == 0) {
+                    continue;
+                }
+                final int token = p / MATCH_COLUMNS.length;
+                final int column = p % MATCH_COLUMNS.length;
+                anyMatch[token] = true;
+                if (column < MATCH_COLUMNS_PRIMARY_COUNT) {
+                    primaryMatch[token] = true;
+                }
+                relevance += hits * MATCH_COLUMNS_WEIGHTS[column];
+            }
+
+            boolean primary = true;
+            for (int n = 0; n < tokenCount; n++) {
+                if (!anyMatch[n]) {
+                    return null;
+                }
+                primary &= primaryMatch[n];
+            }
+            return new SearchHit(values, texts, primary, rank, relevance);
+        }
+
+        private static int countPrefixMatches(String text, String token) {
+            if (text == null) {
+                return 0;
+            }
+            int count = 0;
+            final int length = text.length();
+            int start = -1;
+            for (int n = 0; n <= length; n++) {
+                final boolean isTokenChar = (n < length) && isFtsTokenChar(text.charAt(n));
+                if (isTokenChar && start < 0) {
+                    start = n;
+                } else if (!isTokenChar && start >= 0) {
+                    if (startsWithIgnoreAsciiCase(text, start, n, token)) {
+                        count++;
+                    }
+                    start = -1;
+                }
+            }
+            return count;
+        }
+
+        private static boolean startsWithIgnoreAsciiCase(String text, int start, int end,
+                String prefix) {
+            final int length = prefix.length();
+            if (end - start < length) {
+                return false;
+            }
+            for (int n = 0; n < length; n++) {
+                if (toAsciiLowerCase(text.charAt(start + n))
+                        != toAsciiLowerCase(prefix.charAt(n))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static char toAsciiLowerCase(char c) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        @Override
+        public int compareTo(SearchHit other) {
+            if (primary != other.primary) {
+                return primary ? -1 : 1;
+            }
+            if (rank != other.rank) {
+                return (rank < other.rank) ? -1 : 1;
+            }
+            return other.relevance - relevance;
+        }
+    }
+
+    /**
+     * A private class to describe the data of one provider that needs to be re-indexed
+     */
+    private static class ProviderBatch {
+        public final String providerKey;
+        public final long fingerprint;
+        public final List<SearchIndexableData> data;
+        // The non indexable keys of each data, resolved on the writer thread
+        public final List<List<String>> nonIndexableKeys;
+        public final List<IndexRow> rows = new ArrayList<IndexRow>();
+        public boolean complete = true;
+        // True if some rows are computed at runtime, so that the fingerprint does not cover them
+        public boolean dynamic;
+        public long parseNanos;
+
+        public ProviderBatch(String providerKey, long fingerprint,
+                List<SearchIndexableData> data, List<List<String>> nonIndexableKeys) {
+            this.providerKey = providerKey;
+            this.fingerprint = fingerprint;
+            this.data = data;
+            this.nonIndexableKeys = nonIndexableKeys;
+        }
+
+        /**
+         * Return true if building the rows calls the code of a local SearchIndexProvider,
+         * rather than only parsing XML resources and copying raw data. Providers were written
+         * for being called from a single thread and some of them share static state with their
+         * fragment (WifiSettings for instance), so they are never called concurrently.
+         */
+        public boolean callsLocalProvider() {
+            final int count = data.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData item = data.get(n);
+                if (item instanceof SearchIndexableResource && ((SearchIndexableResource) item)
+                        .xmlResId <= SearchIndexableResources.NO_DATA_RES_ID) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A private class for building the rows of one provider off the writer thread
+     */
+    private class ParseProviderCallable implements Callable<ProviderBatch> {
+        private final String mLocaleStr;
+        private final ProviderBatch mBatch;
+
+        public ParseProviderCallable(String localeStr, ProviderBatch batch) {
+            mLocaleStr = localeStr;
+            mBatch = batch;
+        }
+
+        @Override
+        public ProviderBatch call() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final long start = System.nanoTime();
+            final int count = mBatch.data.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = mBatch.data.get(n);
+                try {
+                    if (indexOneSearchIndexableData(mBatch.rows, mLocaleStr, data,
+                            mBatch.nonIndexableKeys.get(n))) {
+                        mBatch.dynamic = true;
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG,
+                            "Cannot index: " + data.className + " for locale: " + mLocaleStr, e);
+                    mBatch.complete = false;
+                }
+            }
+            mBatch.parseNanos = System.nanoTime() - start;
+            return mBatch;
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1170,34 +2015,46 @@ public class Index {
 
             final boolean forceUpdate = params[0].forceUpdate;
 
+            IndexDatabaseHelper.getInstance(mContext).installPrebuiltDatabaseIfNeeded();
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
 
-            try {
-                database.beginTransaction();
-                if (dataToDelete.size() > 0) {
+            if (dataToDelete.size() > 0) {
+                try {
+                    database.beginTransaction();
                     processDataToDelete(database, localeStr, dataToDelete);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
                 }
-                if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+            }
+            if (dataToUpdate.size() > 0) {
+                final SQLiteStatement statement = database.compileStatement(INSERT_ROW_SQL);
+                try {
+                    if (forceUpdate) {
+                        try {
+                            database.beginTransaction();
+                            processDataToUpdate(database, statement, localeStr, dataToUpdate,
+                                    nonIndexableKeys);
+                            database.setTransactionSuccessful();
+                        } finally {
+                            database.endTransaction();
+                        }
+                    } else {
+                        processChangedProviders(database, statement, localeStr, dataToUpdate,
+                                nonIndexableKeys);
+                    }
+                } finally {
+                    statement.close();
                 }
-                database.setTransactionSuccessful();
-            } finally {
-                database.endTransaction();
             }
 
             return null;
         }
 
-        private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+        private boolean processDataToUpdate(SQLiteDatabase database, SQLiteStatement statement,
+                String localeStr, List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
@@ -1206,7 +2063,15 @@ public class Index {
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
                 try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
+                    final long start = System.nanoTime();
+                    final String providerKey = getProviderKey(data);
+                    final List<IndexRow> rows = buildRows(localeStr, data, nonIndexableKeys);
+                    final long parsed = System.nanoTime();
+                    insertRows(statement, rows);
+                    // The rows of this provider no longer match its stored fingerprint
+                    saveProviderFingerprint(database, localeStr, providerKey, null);
+                    mMetrics.recordProviderIndexing(providerKey, parsed - start,
+                            System.nanoTime() - parsed, rows.size());
                 } catch (Exception e) {
                     Log.e(LOG_TAG,
                             "Cannot index: " + data.className + " for locale: " + localeStr, e);
@@ -1219,6 +2084,125 @@ public class Index {
             return result;
         }
 
+        /**
+         * Re-index only the providers whose fingerprint differs from the one stored in the
+         * meta table.
+         *
+         * The non indexable keys of the providers are resolved once, here, and used for both
+         * the fingerprints and the rows. The rows of the changed providers are built at most
+         * PARSER_WINDOW providers ahead: XML resources are parsed in parallel by the parser
+         * executor, while the local providers are called one at a time by the provider
+         * executor, after this thread is done with them. This thread is the only
+         * writer: it inserts each provider batch, in order, into its own transaction so that
+         * the work done for the other providers is kept if we are interrupted.
+         */
+        private void processChangedProviders(SQLiteDatabase database, SQLiteStatement statement,
+                String localeStr, List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys) {
+
+            final long current = System.currentTimeMillis();
+
+            final Map<String, Long> fingerprints = getProviderFingerprints(database, localeStr);
+            final Map<String, List<SearchIndexableData>> providers =
+                    new LinkedHashMap<String, List<SearchIndexableData>>();
+            final int count = dataToUpdate.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = dataToUpdate.get(n);
+                if (data == null) {
+                    continue;
+                }
+                final String providerKey = getProviderKey(data);
+                List<SearchIndexableData> list = providers.get(providerKey);
+                if (list == null) {
+                    list = new ArrayList<SearchIndexableData>();
+                    providers.put(providerKey, list);
+                }
+                list.add(data);
+            }
+
+            final List<ProviderBatch> changed = new ArrayList<ProviderBatch>();
+            for (Map.Entry<String, List<SearchIndexableData>> entry : providers.entrySet()) {
+                final String providerKey = entry.getKey();
+                final List<SearchIndexableData> list = entry.getValue();
+
+                final int listCount = list.size();
+                final List<List<String>> keys = new ArrayList<List<String>>(listCount);
+                for (int n = 0; n < listCount; n++) {
+                    keys.add(getResourceNonIndexableKeys(list.get(n), nonIndexableKeys));
+                }
+
+                final long fingerprint = computeFingerprint(localeStr, list, keys);
+                final Long previous = fingerprints.get(providerKey);
+                if (previous == null || previous != fingerprint) {
+                    changed.add(new ProviderBatch(providerKey, fingerprint, list, keys));
+                }
+            }
+
+            final ArrayDeque<FutureTask<ProviderBatch>> pending =
+                    new ArrayDeque<FutureTask<ProviderBatch>>();
+            final int changedCount = changed.size();
+            int next = 0;
+            while (next < changedCount || !pending.isEmpty()) {
+                while (next < changedCount && pending.size() < PARSER_WINDOW) {
+                    final FutureTask<ProviderBatch> task = new FutureTask<ProviderBatch>(
+                            new ParseProviderCallable(localeStr, changed.get(next)));
+                    if (changed.get(next).callsLocalProvider()) {
+                        mProviderExecutor.execute(task);
+                    } else {
+                        mParserExecutor.execute(task);
+                    }
+                    pending.add(task);
+                    next++;
+                }
+
+                final ProviderBatch batch;
+                try {
+                    batch = pending.poll().get();
+                } catch (InterruptedException e) {
+                    // Abort: the providers left are re-indexed next time as their fingerprints
+                    // have not been saved
+                    Log.w(LOG_TAG, "Interrupted while indexing locale: " + localeStr);
+                    for (FutureTask<ProviderBatch> task : pending) {
+                        task.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Cannot index provider for locale: " + localeStr, e);
+                    continue;
+                }
+
+                final long start = System.nanoTime();
+                try {
+                    database.beginTransaction();
+                    delete(database, localeStr, IndexColumns.PROVIDER_KEY, batch.providerKey);
+                    insertRows(statement, batch.rows);
+                    // Leave the fingerprint out if something failed so that we retry next time,
+                    // or if some rows are computed at runtime so that we always refresh them
+                    saveProviderFingerprint(database, localeStr, batch.providerKey,
+                            (batch.complete && !batch.dynamic) ? batch.fingerprint : null);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                mMetrics.recordProviderIndexing(batch.providerKey, batch.parseNanos,
+                        System.nanoTime() - start, batch.rows.size());
+            }
+
+            final long now = System.currentTimeMillis();
+            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
+                    (now - current) + " millis (" + changedCount + " of " + providers.size() +
+                    " providers changed)");
+        }
+
+        private void insertRows(SQLiteStatement statement, List<IndexRow> rows) {
+            final int count = rows.size();
+            for (int n = 0; n < count; n++) {
+                rows.get(n).bind(statement);
+                statement.executeInsert();
+            }
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1233,6 +2217,11 @@ public class Index {
                 }
                 if (!TextUtils.isEmpty(data.className)) {
                     delete(database, IndexColumns.CLASS_NAME, data.className);
+                    // Rows are deleted for every locale, so every locale needs to be
+                    // re-indexed for this provider
+                    database.delete(Tables.TABLE_META_INDEX,
+                            MetaColumns.PROVIDER_KEY + "=?",
+                            new String[] { getProviderKey(data) });
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
@@ -1256,18 +2245,26 @@ public class Index {
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        private int delete(SQLiteDatabase database, String locale, String columName,
+                String value) {
+            final String whereClause = IndexColumns.LOCALE + "=? AND " + columName + "=?";
+            final String[] whereArgs = new String[] { locale, value };
+
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
+
+        private Map<String, Long> getProviderFingerprints(SQLiteDatabase database,
+                String locale) {
+            final Map<String, Long> result = new HashMap<String, Long>();
             Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                cursor = database.query(Tables.TABLE_META_INDEX,
+                        new String[] { MetaColumns.PROVIDER_KEY, MetaColumns.FINGERPRINT },
+                        MetaColumns.LOCALE + "=? AND " + MetaColumns.FINGERPRINT + " IS NOT NULL",
+                        new String[] { locale }, null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getLong(1));
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
@@ -1275,46 +2272,78 @@ public class Index {
             }
             return result;
         }
+
+        private void saveProviderFingerprint(SQLiteDatabase database, String locale,
+                String providerKey, Long fingerprint) {
+            database.delete(Tables.TABLE_META_INDEX,
+                    MetaColumns.LOCALE + "=? AND " + MetaColumns.PROVIDER_KEY + "=?",
+                    new String[] { locale, providerKey });
+            if (fingerprint == null) {
+                return;
+            }
+            final ContentValues values = new ContentValues();
+            values.put(MetaColumns.BUILD, Build.VERSION.INCREMENTAL);
+            values.put(MetaColumns.PROVIDER_KEY, providerKey);
+            values.put(MetaColumns.LOCALE, locale);
+            values.put(MetaColumns.FINGERPRINT, fingerprint);
+            database.insertOrThrow(Tables.TABLE_META_INDEX, null, values);
+        }
     }
 
     /**
-     * A basic AsyncTask for saving a Search query into the database
+     * A basic AsyncTask for saving the pending Search queries into the database
      */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
+    private class SaveSearchQueryTask extends AsyncTask<Void, Void, Void> {
 
         @Override
-        protected Long doInBackground(String... params) {
-            final long now = new Date().getTime();
-
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
+        protected Void doInBackground(Void... params) {
+            final List<SavedQueriesCache.Entry> entries;
+            synchronized (mPendingSavedQueries) {
+                entries = new ArrayList<SavedQueriesCache.Entry>(mPendingSavedQueries);
+                mPendingSavedQueries.clear();
+                mIsSavingQueries = false;
+            }
 
             final SQLiteDatabase database = getWritableDatabase();
 
-            long lastInsertedRowId = -1;
             try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
+                database.beginTransaction();
+
+                long lastInsertedRowId = -1;
+                final int count = entries.size();
+                for (int n = 0; n < count; n++) {
+                    final SavedQueriesCache.Entry entry = entries.get(n);
+
+                    final ContentValues values = new ContentValues();
+                    values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, entry.query);
+                    values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP,
+                            entry.timestamp);
 
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+                    // First, delete all saved queries that are the same
+                    database.delete(Tables.TABLE_SAVED_QUERIES,
+                            IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
+                            new String[] { entry.query });
+
+                    // Second, insert the saved query
+                    lastInsertedRowId =
+                            database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+                }
 
                 // Last, remove "old" saved queries
                 final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
                 if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
+                    int deleted = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
                             new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
+                    Log.d(LOG_TAG, "Deleted '" + deleted + "' saved Search query(ies)");
                 }
+                database.setTransactionSuccessful();
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+            } finally {
+                database.endTransaction();
             }
 
-            return lastInsertedRowId;
+            return null;
         }
     }
 }
@@ -16,19 +16,44 @@
 
 package com.android.settings.search;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Database of the search Index.
+ *
+ * The Index is rebuilt on the device whenever the build changes. To avoid this, a prebuilt
+ * database can be shipped as the {@link #PREBUILT_DATABASE_ASSET} asset. It is generated on a
+ * device running the same Settings APK (see PrebuiltIndexGenerator in the tests) and holds the
+ * Settings own rows for every shipped locale, along with their provider fingerprints. Rows
+ * without a fingerprint, such as the ones computed at runtime from the state of the generating
+ * device, are left out. When the database does not belong to the current build, the prebuilt
+ * one is installed in its place by the first Index update, before the database is opened, and
+ * only the providers whose fingerprint differs on this device, remote ones included, get
+ * indexed again.
+ */
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 116;
+
+    public static final String PREBUILT_DATABASE_ASSET = "search_index.db";
+    private static final String PREBUILT_DATABASE_SUFFIX = ".prebuilt";
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
@@ -57,10 +82,14 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String ENABLED = "enabled";
         public static final String DATA_KEY_REF = "data_key_reference";
         public static final String USER_ID = "user_id";
+        public static final String PROVIDER_KEY = "provider_key";
     }
 
     public interface MetaColumns {
         public static final String BUILD = "build";
+        public static final String PROVIDER_KEY = "provider_key";
+        public static final String LOCALE = "locale";
+        public static final String FINGERPRINT = "fingerprint";
     }
 
     public interface SavedQueriesColums  {
@@ -108,12 +137,22 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     IndexColumns.DATA_KEY_REF +
                     ", " +
                     IndexColumns.USER_ID +
+                    ", " +
+                    IndexColumns.PROVIDER_KEY +
                     ");";
 
+    // The row with a null provider key holds the build version. Every other row holds the
+    // fingerprint of one indexed provider for one locale.
     private static final String CREATE_META_TABLE =
             "CREATE TABLE " + Tables.TABLE_META_INDEX +
                     "(" +
                     MetaColumns.BUILD + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    MetaColumns.PROVIDER_KEY + " TEXT" +
+                    ", " +
+                    MetaColumns.LOCALE + " VARCHAR(32)" +
+                    ", " +
+                    MetaColumns.FINGERPRINT + " INTEGER" +
                     ")";
 
     private static final String CREATE_SAVED_QUERIES_TABLE =
@@ -126,13 +165,21 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
+                    " (" + MetaColumns.BUILD + ")" +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
     private static final String SELECT_BUILD_VERSION =
-            "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
+            "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX +
+                    " WHERE " + MetaColumns.PROVIDER_KEY + " IS NULL LIMIT 1;";
 
     private static IndexDatabaseHelper sSingleton;
 
+    private final Context mContext;
+
+    // Synchronize on this for the following, like SQLiteOpenHelper does when opening.
+    private boolean mPrebuiltChecked;
+    private boolean mOpened;
+
     public static synchronized IndexDatabaseHelper getInstance(Context context) {
         if (sSingleton == null) {
             sSingleton = new IndexDatabaseHelper(context);
@@ -140,8 +187,135 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         return sSingleton;
     }
 
+    /**
+     * Install the prebuilt database if the current one is missing or belongs to another build,
+     * once per process. This copies the asset, so it is called on the indexing thread. It does
+     * nothing if the database was opened already, by a search for instance: the Index is then
+     * rebuilt on the device.
+     */
+    public void installPrebuiltDatabaseIfNeeded() {
+        synchronized (this) {
+            if (mPrebuiltChecked || mOpened) {
+                return;
+            }
+            mPrebuiltChecked = true;
+        }
+
+        final File databaseFile = mContext.getDatabasePath(DATABASE_NAME);
+        if (databaseFile.exists()
+                && Build.VERSION.INCREMENTAL.equals(getBuildVersion(databaseFile))) {
+            return;
+        }
+
+        final InputStream in;
+        try {
+            in = mContext.getAssets().open(PREBUILT_DATABASE_ASSET);
+        } catch (IOException e) {
+            // No prebuilt database, the Index will be built on the device
+            return;
+        }
+
+        final File prebuiltFile = new File(databaseFile.getPath() + PREBUILT_DATABASE_SUFFIX);
+        try {
+            databaseFile.getParentFile().mkdirs();
+            copy(in, prebuiltFile);
+            if (!preparePrebuiltDatabase(prebuiltFile)) {
+                prebuiltFile.delete();
+                return;
+            }
+            synchronized (this) {
+                if (mOpened) {
+                    Log.w(TAG, "Database opened while copying the prebuilt one");
+                    prebuiltFile.delete();
+                    return;
+                }
+                SQLiteDatabase.deleteDatabase(databaseFile);
+                if (prebuiltFile.renameTo(databaseFile)) {
+                    Log.i(TAG, "Installed prebuilt database");
+                } else {
+                    Log.e(TAG, "Cannot install prebuilt database");
+                    prebuiltFile.delete();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot copy prebuilt database", e);
+            prebuiltFile.delete();
+        }
+    }
+
+    /**
+     * Check that the prebuilt database matches our schema and stamp it with the current build,
+     * so that {@link #onOpen(SQLiteDatabase)} keeps it.
+     */
+    private static boolean preparePrebuiltDatabase(File file) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            if (db.getVersion() != DATABASE_VERSION) {
+                Log.w(TAG, "Ignoring prebuilt database with schema version '" +
+                        db.getVersion() + "'");
+                return false;
+            }
+            final ContentValues values = new ContentValues();
+            values.put(MetaColumns.BUILD, Build.VERSION.INCREMENTAL);
+            db.update(Tables.TABLE_META_INDEX, values, MetaColumns.PROVIDER_KEY + " IS NULL",
+                    null);
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open prebuilt database", e);
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Write a copy of the Index database to the given file, for shipping it as the prebuilt
+     * database. Saved queries are left out, and so are the rows of the providers without a
+     * fingerprint: they depend on the device (saved networks, accounts...) or failed to be
+     * indexed, and the device would index them again anyway. This closes the database.
+     */
+    public synchronized void exportPrebuiltDatabase(File destination) throws IOException {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.delete(Tables.TABLE_SAVED_QUERIES, null, null);
+        db.delete(Tables.TABLE_PREFS_INDEX, "NOT EXISTS (SELECT 1 FROM " +
+                Tables.TABLE_META_INDEX + " WHERE " +
+                Tables.TABLE_META_INDEX + "." + MetaColumns.PROVIDER_KEY + "=" +
+                Tables.TABLE_PREFS_INDEX + "." + IndexColumns.PROVIDER_KEY + " AND " +
+                Tables.TABLE_META_INDEX + "." + MetaColumns.LOCALE + "=" +
+                Tables.TABLE_PREFS_INDEX + "." + IndexColumns.LOCALE + " AND " +
+                Tables.TABLE_META_INDEX + "." + MetaColumns.FINGERPRINT + " IS NOT NULL)",
+                null);
+        // Do not leave the deleted rows in the free pages of the file
+        db.execSQL("VACUUM");
+        final String path = db.getPath();
+        close();
+        copy(new FileInputStream(path), destination);
+    }
+
+    private static void copy(InputStream in, File destination) throws IOException {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(destination);
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
     public IndexDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     @Override
@@ -160,6 +334,9 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
+        synchronized (this) {
+            mOpened = true;
+        }
 
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
@@ -195,7 +372,22 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
-    private String getBuildVersion(SQLiteDatabase db) {
+    private static String getBuildVersion(File file) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            return getBuildVersion(db);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open database: " + file.getPath());
+            return null;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private static String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
         try {
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performance metrics of the search {@link Index}.
+ *
+ * Records the time spent indexing each provider and the rows it wrote, the latency of the FTS
+ * queries per query length and the cost of materializing the results cursors. The metrics can
+ * be printed with {@link #dump(String, PrintWriter)}, which the Settings activity does when
+ * running "adb shell dumpsys activity com.android.settings".
+ */
+public class IndexMetrics {
+
+    /**
+     * Indexing statistics of one provider.
+     */
+    public static class ProviderStats {
+        public final String providerKey;
+        public int count;
+        public long parseNanos;
+        public long writeNanos;
+        public long lastNanos;
+        public int rows;
+
+        public ProviderStats(String providerKey) {
+            this.providerKey = providerKey;
+        }
+
+        public long getTotalNanos() {
+            return parseNanos + writeNanos;
+        }
+    }
+
+    /**
+     * Latency histogram with power of two millisecond buckets: [0, 1), [1, 2), [2, 4), ...
+     * The last bucket holds everything above.
+     */
+    public static class Histogram {
+        public static final int BUCKET_COUNT = 12;
+
+        public final long[] counts = new long[BUCKET_COUNT];
+        public long count;
+        public long totalNanos;
+        public long maxNanos;
+
+        public void add(long nanos) {
+            counts[getBucket(nanos)]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * Return the upper bound in milliseconds of the bucket holding the given percentile.
+         */
+        public long getPercentileMillis(int percentile) {
+            final long target = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int n = 0; n < BUCKET_COUNT; n++) {
+                seen += counts[n];
+                if (seen >= target && seen > 0) {
+                    return getBucketUpperMillis(n);
+                }
+            }
+            return getBucketUpperMillis(BUCKET_COUNT - 1);
+        }
+
+        private static int getBucket(long nanos) {
+            final long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKET_COUNT - 1 && millis >= getBucketUpperMillis(bucket)) {
+                bucket++;
+            }
+            return bucket;
+        }
+
+        private static long getBucketUpperMillis(int bucket) {
+            return 1L << bucket;
+        }
+    }
+
+    // Queries of this length or more share the last histogram
+    public static final int MAX_QUERY_LENGTH = 8;
+
+    private final Map<String, ProviderStats> mProviders = new HashMap<String, ProviderStats>();
+    private final Histogram[] mQueryLatencies = new Histogram[MAX_QUERY_LENGTH + 1];
+    private final Histogram mMaterializations = new Histogram();
+    private long mMaterializedRows;
+    private long mQueryRows;
+
+    public IndexMetrics() {
+        for (int n = 0; n < mQueryLatencies.length; n++) {
+            mQueryLatencies[n] = new Histogram();
+        }
+    }
+
+    public synchronized void recordProviderIndexing(String providerKey, long parseNanos,
+            long writeNanos, int rows) {
+        ProviderStats stats = mProviders.get(providerKey);
+        if (stats == null) {
+            stats = new ProviderStats(providerKey);
+            mProviders.put(providerKey, stats);
+        }
+        stats.count++;
+        stats.parseNanos += parseNanos;
+        stats.writeNanos += writeNanos;
+        stats.lastNanos = parseNanos + writeNanos;
+        stats.rows += rows;
+    }
+
+    public synchronized void recordQuery(int queryLength, long nanos, int rows) {
+        mQueryLatencies[Math.min(queryLength, MAX_QUERY_LENGTH)].add(nanos);
+        mQueryRows += rows;
+    }
+
+    public synchronized void recordMaterialization(long nanos, int rows) {
+        mMaterializations.add(nanos);
+        mMaterializedRows += rows;
+    }
+
+    public synchronized List<ProviderStats> getProviderStats() {
+        final List<ProviderStats> result = new ArrayList<ProviderStats>(mProviders.values());
+        Collections.sort(result, new Comparator<ProviderStats>() {
+            @Override
+            public int compare(ProviderStats lhs, ProviderStats rhs) {
+                return Long.compare(rhs.getTotalNanos(), lhs.getTotalNanos());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return the query latency histogram for the given query length.
+     */
+    public synchronized Histogram getQueryLatencies(int queryLength) {
+        return mQueryLatencies[Math.min(queryLength, MAX_QUERY_LENGTH)];
+    }
+
+    public synchronized Histogram getMaterializations() {
+        return mMaterializations;
+    }
+
+    public synchronized void reset() {
+        mProviders.clear();
+        for (int n = 0; n < mQueryLatencies.length; n++) {
+            mQueryLatencies[n] = new Histogram();
+        }
+        mMaterializations.count = 0;
+        mMaterializations.totalNanos = 0;
+        mMaterializations.maxNanos = 0;
+        for (int n = 0; n < Histogram.BUCKET_COUNT; n++) {
+            mMaterializations.counts[n] = 0;
+        }
+        mMaterializedRows = 0;
+        mQueryRows = 0;
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix); writer.println("Search Index metrics:");
+
+        final List<ProviderStats> providers = getProviderStats();
+        long totalNanos = 0;
+        int totalRows = 0;
+        for (ProviderStats stats : providers) {
+            totalNanos += stats.getTotalNanos();
+            totalRows += stats.rows;
+        }
+        writer.print(prefix); writer.print("  Indexing: "); writer.print(providers.size());
+                writer.print(" providers, "); writer.print(totalRows);
+                writer.print(" rows, "); writer.print(toMillis(totalNanos)); writer.println("ms");
+        for (ProviderStats stats : providers) {
+            writer.print(prefix); writer.print("    "); writer.print(stats.providerKey);
+                    writer.print(": count="); writer.print(stats.count);
+                    writer.print(" rows="); writer.print(stats.rows);
+                    writer.print(" parse="); writer.print(toMillis(stats.parseNanos));
+                    writer.print("ms write="); writer.print(toMillis(stats.writeNanos));
+                    writer.print("ms last="); writer.print(toMillis(stats.lastNanos));
+                    writer.println("ms");
+        }
+
+        writer.print(prefix); writer.print("  Queries ("); writer.print(mQueryRows);
+                writer.println(" rows):");
+        for (int n = 1; n < mQueryLatencies.length; n++) {
+            final Histogram histogram = mQueryLatencies[n];
+            if (histogram.count == 0) {
+                continue;
+            }
+            writer.print(prefix); writer.print("    length ");
+                    writer.print(n == MAX_QUERY_LENGTH ? n + "+" : Integer.toString(n));
+                    writer.print(": ");
+            dumpHistogram(writer, histogram);
+        }
+
+        writer.print(prefix); writer.print("  Cursor materialization (");
+                writer.print(mMaterializedRows); writer.print(" rows): ");
+        dumpHistogram(writer, mMaterializations);
+    }
+
+    private static void dumpHistogram(PrintWriter writer, Histogram histogram) {
+        writer.print("count="); writer.print(histogram.count);
+        if (histogram.count > 0) {
+            writer.print(" avg="); writer.print(toMillis(histogram.totalNanos / histogram.count));
+            writer.print("ms p50<"); writer.print(histogram.getPercentileMillis(50));
+            writer.print("ms p90<"); writer.print(histogram.getPercentileMillis(90));
+            writer.print("ms max="); writer.print(toMillis(histogram.maxNanos));
+            writer.print("ms");
+        }
+        writer.println();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * In-memory prefix tree of the saved search queries, used for proposing suggestions without
+ * touching the database.
+ *
+ * Queries are keyed by their lower case form. When several queries share a prefix, the most
+ * recently used ones are proposed first.
+ */
+class SavedQueriesCache {
+
+    /**
+     * A saved query and the last time it was used.
+     */
+    public static class Entry {
+        public final String query;
+        public final long timestamp;
+
+        public Entry(String query, long timestamp) {
+            this.query = query;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Node {
+        public final SparseArray<Node> children = new SparseArray<Node>();
+        public Entry entry;
+    }
+
+    private static final Comparator<Entry> RECENT_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.timestamp == rhs.timestamp) {
+                return 0;
+            }
+            return (lhs.timestamp > rhs.timestamp) ? -1 : 1;
+        }
+    };
+
+    private final Node mRoot = new Node();
+    private final int mMaxSize;
+    private int mSize;
+    private boolean mLoaded;
+
+    public SavedQueriesCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized void setLoaded() {
+        mLoaded = true;
+    }
+
+    /**
+     * Add a query, or refresh its timestamp if it is more recent than the one we know about.
+     * The least recently used query is dropped when the cache is full.
+     */
+    public synchronized void put(String query, long timestamp) {
+        if (query == null) {
+            return;
+        }
+        final String key = query.toLowerCase();
+        Node node = mRoot;
+        for (int n = 0; n < key.length(); n++) {
+            final char c = key.charAt(n);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (node.entry == null) {
+            mSize++;
+        } else if (node.entry.timestamp > timestamp) {
+            return;
+        }
+        node.entry = new Entry(query, timestamp);
+
+        if (mSize > mMaxSize) {
+            final List<Entry> entries = new ArrayList<Entry>();
+            collect(mRoot, entries);
+            Collections.sort(entries, RECENT_FIRST);
+            remove(entries.get(entries.size() - 1).query.toLowerCase());
+        }
+    }
+
+    /**
+     * Return at most maxCount saved queries starting with the given prefix, most recent first.
+     * All the saved queries are candidates for an empty prefix.
+     */
+    public synchronized List<String> getSuggestions(String prefix, int maxCount) {
+        final List<String> result = new ArrayList<String>();
+
+        Node node = mRoot;
+        if (!TextUtils.isEmpty(prefix)) {
+            final String key = prefix.toLowerCase();
+            for (int n = 0; n < key.length() && node != null; n++) {
+                node = node.children.get(key.charAt(n));
+            }
+        }
+        if (node == null) {
+            return result;
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        collect(node, entries);
+        Collections.sort(entries, RECENT_FIRST);
+
+        final int count = Math.min(entries.size(), maxCount);
+        for (int n = 0; n < count; n++) {
+            result.add(entries.get(n).query);
+        }
+        return result;
+    }
+
+    private void remove(String key) {
+        final Node[] path = new Node[key.length() + 1];
+        path[0] = mRoot;
+        for (int n = 0; n < key.length(); n++) {
+            path[n + 1] = path[n].children.get(key.charAt(n));
+            if (path[n + 1] == null) {
+                return;
+            }
+        }
+        if (path[key.length()].entry == null) {
+            return;
+        }
+        path[key.length()].entry = null;
+        mSize--;
+
+        // Prune the nodes that do not lead to any query anymore
+        for (int n = key.length(); n > 0; n--) {
+            final Node node = path[n];
+            if (node.entry != null || node.children.size() > 0) {
+                break;
+            }
+            path[n - 1].children.remove(key.charAt(n - 1));
+        }
+    }
+
+    private static void collect(Node node, List<Entry> entries) {
+        if (node.entry != null) {
+            entries.add(node.entry);
+        }
+        final int count = node.children.size();
+        for (int n = 0; n < count; n++) {
+            collect(node.children.valueAt(n), entries);
+        }
+    }
+}
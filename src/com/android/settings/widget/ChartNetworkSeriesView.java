@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -60,6 +62,21 @@ public class ChartNetworkSeriesView extends View {
     private Path mPathFill;
     private Path mPathEstimate;
 
+    /**
+     * Outline of the series decimated to the screen width. Only depends on
+     * the horizontal axis, so that changes of the vertical axis, as while
+     * dragging a sweep, only need to map it again instead of walking every
+     * bucket.
+     */
+    private final Points mPoints = new Points();
+    private long mPointsLastTime;
+
+    /** Horizontal axis range and width {@link #mPoints} was built for. */
+    private boolean mPointsValid = false;
+    private float mPointsStartX;
+    private float mPointsEndX;
+    private int mPointsWidth;
+
     private int mSafeRegion;
 
     private long mStart;
@@ -107,6 +124,57 @@ public class ChartNetworkSeriesView extends View {
         mPathEstimate = new Path();
     }
 
+    /**
+     * Vertices of an outline, as pairs of horizontal point and total data,
+     * keeping at most the first and last vertex of each pixel column.
+     */
+    static class Points {
+        float[] x = new float[0];
+        long[] total = new long[0];
+        int count;
+
+        /** Index of the first vertex of the column of the last vertex. */
+        private int mColumnStart;
+
+        /**
+         * Remove every vertex, and make room for the given number of them.
+         */
+        void reset(int capacity) {
+            count = 0;
+            mColumnStart = 0;
+            if (x.length < capacity) {
+                x = new float[capacity];
+                total = new long[capacity];
+            }
+        }
+
+        /**
+         * Append a vertex. Within a pixel column, only the first and last
+         * vertices are kept; since the series is cumulative, they hold the
+         * min and max of the column.
+         */
+        void add(float pointX, long pointTotal) {
+            if (count > 0 && (int) pointX == (int) x[count - 1]) {
+                if (count - mColumnStart >= 2) {
+                    // replace last vertex of the column
+                    x[count - 1] = pointX;
+                    total[count - 1] = pointTotal;
+                    return;
+                }
+            } else {
+                mColumnStart = count;
+            }
+
+            if (count == x.length) {
+                x = Arrays.copyOf(x, count * 2 + 2);
+                total = Arrays.copyOf(total, count * 2 + 2);
+            }
+            x[count] = pointX;
+            total[count] = pointTotal;
+            count++;
+        }
+    }
+
     void init(ChartAxis horiz, ChartAxis vert) {
         mHoriz = Preconditions.checkNotNull(horiz, "missing horiz");
         mVert = Preconditions.checkNotNull(vert, "missing vert");
@@ -143,13 +211,17 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        invalidatePoints();
         invalidatePath();
         invalidate();
     }
 
     public void setBounds(long start, long end) {
-        mStart = start;
-        mEnd = end;
+        if (mStart != start || mEnd != end) {
+            mStart = start;
+            mEnd = end;
+            invalidatePoints();
+        }
     }
 
     public void setSecondary(boolean secondary) {
@@ -158,39 +230,39 @@ public class ChartNetworkSeriesView extends View {
 
     public void invalidatePath() {
         mPathValid = false;
-        mMax = 0;
         invalidate();
     }
 
+    private void invalidatePoints() {
+        mPointsValid = false;
+        mMax = 0;
+    }
+
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Walk the currently bound {@link NetworkStatsHistory} data and build
+     * the series outline decimated to the screen width.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
+    private void generatePoints() {
+        if (LOGD) Log.d(TAG, "generatePoints()");
 
         mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
+        mPoints.reset(0);
+        mPointsValid = true;
+        mPointsStartX = mHoriz.convertToPoint(mStart);
+        mPointsEndX = mHoriz.convertToPoint(mEnd);
+        mPointsWidth = getWidth();
+
+        float lastX = 0;
+        long lastTime = mHoriz.convertToValue(lastX);
+        mPointsLastTime = lastTime;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
             return;
         }
 
-        final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
-
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+        // two vertices for each pixel column at most, plus the extension
+        mPoints.reset(2 * (mPointsWidth + 2) + 1);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -213,49 +285,98 @@ public class ChartNetworkSeriesView extends View {
             // skip until we find first stats on screen
             if (endX < 0) continue;
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                mPoints.add(startX, totalData);
             }
 
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            mPoints.add(endX, totalData);
 
             lastX = endX;
-            lastY = endY;
             lastTime = endTime;
         }
 
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
+            mPoints.add(lastX, totalData);
+        }
+
+        mMax = totalData;
+        mPointsLastTime = lastTime;
+    }
+
+    /**
+     * Check that {@link #mPoints} was built for the current horizontal axis
+     * range and width.
+     */
+    private boolean arePointsCurrent() {
+        return mPointsValid
+                && mPointsWidth == getWidth()
+                && mPointsStartX == mHoriz.convertToPoint(mStart)
+                && mPointsEndX == mHoriz.convertToPoint(mEnd);
+    }
+
+    /**
+     * Erase any existing {@link Path} and generate series outline based on
+     * currently bound {@link NetworkStatsHistory} data. The bound data is
+     * only walked again when the horizontal axis changed.
+     */
+    private void generatePath() {
+        if (LOGD) Log.d(TAG, "generatePath()");
+
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+        mPathValid = true;
 
+        if (!arePointsCurrent()) {
+            generatePoints();
+        }
+
+        // bail when not enough stats to render
+        if (mStats == null || mStats.size() < 2) {
+            return;
+        }
+
+        final int width = getWidth();
+        final int height = getHeight();
+
+        float lastX = 0;
+        float lastY = height;
+        long lastTime = mPointsLastTime;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
+
+        for (int i = 0; i < mPoints.count; i++) {
+            lastX = mPoints.x[i];
+            lastY = mVert.convertToPoint(mPoints.total[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
 
+        long totalData = mMax;
+
         if (LOGD) {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+                    + totalData + " from " + mPoints.count + " points");
         }
 
         // drop to bottom of graph from current location
         mPathFill.lineTo(lastX, height);
         mPathFill.lineTo(0, height);
 
-        mMax = totalData;
-
         if (ESTIMATE_ENABLED) {
+            NetworkStatsHistory.Entry entry = null;
+
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
@@ -292,7 +413,10 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void setEndTime(long endTime) {
-        mEndTime = endTime;
+        if (mEndTime != endTime) {
+            mEndTime = endTime;
+            invalidatePoints();
+        }
     }
 
     public void setEstimateVisible(boolean estimateVisible) {
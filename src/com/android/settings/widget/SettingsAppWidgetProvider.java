@@ -26,13 +26,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.location.LocationManager;
-import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IPowerManager;
+import android.os.Looper;
+import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserManager;
@@ -44,8 +46,14 @@ import com.android.settings.R;
 import com.android.settings.bluetooth.LocalBluetoothAdapter;
 import com.android.settings.bluetooth.LocalBluetoothManager;
 
+import java.util.ArrayList;
+
 /**
  * Provides control of power-related settings from a widget.
+ *
+ * Broadcasts and button presses are handled on a single worker thread, which owns the state
+ * trackers and makes the slow calls into the system services. The trackers cache the state
+ * reported by the broadcasts, and bursts of changes are coalesced into one widget update.
  */
 public class SettingsAppWidgetProvider extends AppWidgetProvider {
     static final String TAG = "SettingsAppWidgetProvider";
@@ -100,11 +108,20 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
     /** Minimum brightness at which the indicator is shown at full */
     private static final float FULL_BRIGHTNESS_THRESHOLD = 0.8f;
 
+    /** Delay used to coalesce a burst of state changes into a single widget update */
+    private static final long UPDATE_DELAY_MS = 100;
+
+    private static final int MSG_UPDATE_WIDGET = 1;
+
+    private static WorkerHandler sWorker;
+
+    // The following are only accessed on the worker thread.
     private static final StateTracker sWifiState = new WifiStateTracker();
     private static final StateTracker sBluetoothState = new BluetoothStateTracker();
     private static final StateTracker sLocationState = new LocationStateTracker();
     private static final StateTracker sSyncState = new SyncStateTracker();
     private static SettingsObserver sSettingsObserver;
+    private static final ArrayList<PendingResult> sPendingResults = new ArrayList<PendingResult>();
 
     /**
      * The state machine for a setting's toggling, tracking reality
@@ -120,6 +137,11 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
         private Boolean mActualState = null;  // initially not set
         private Boolean mIntendedState = null;  // initially not set
 
+        // Last known 5-state value of the underlying setting, so that
+        // widget updates don't have to query the system each time.
+        private int mCachedActualState = STATE_UNKNOWN;
+        private boolean mHaveCachedActualState = false;
+
         // Did a toggle request arrive while a state update was
         // already in-flight?  If so, the mIntendedState needs to be
         // requested when the other one is done, unless we happened to
@@ -261,6 +283,8 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
          */
         protected final void setCurrentState(Context context, int newState) {
             final boolean wasInTransition = mInTransition;
+            mCachedActualState = newState;
+            mHaveCachedActualState = newState != STATE_UNKNOWN;
             switch (newState) {
                 case STATE_DISABLED:
                     mInTransition = false;
@@ -321,7 +345,7 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                 // state (to be fixed separately).
                 return STATE_INTERMEDIATE;
             }
-            switch (getActualState(context)) {
+            switch (getCachedActualState(context)) {
                 case STATE_DISABLED:
                     return STATE_DISABLED;
                 case STATE_ENABLED:
@@ -340,6 +364,26 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
          */
         public abstract int getActualState(Context context);
 
+        /**
+         * Returns the last known underlying state, only querying
+         * {@link #getActualState} if it isn't known yet.
+         */
+        public final int getCachedActualState(Context context) {
+            if (!mHaveCachedActualState) {
+                mCachedActualState = getActualState(context);
+                mHaveCachedActualState = mCachedActualState != STATE_UNKNOWN;
+            }
+            return mCachedActualState;
+        }
+
+        /**
+         * Forgets the cached underlying state, so that it is queried
+         * again on the next update.
+         */
+        public final void invalidateActualState() {
+            mHaveCachedActualState = false;
+        }
+
         /**
          * Actually make the desired change to the underlying radio
          * API.
@@ -381,26 +425,18 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                 return;
             }
 
-            // Actually request the wifi change and persistent
-            // settings write off the UI thread, as it can take a
-            // user-noticeable amount of time, especially if there's
-            // disk contention.
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... args) {
-                    /**
-                     * Disable tethering if enabling Wifi
-                     */
-                    int wifiApState = wifiManager.getWifiApState();
-                    if (desiredState && ((wifiApState == WifiManager.WIFI_AP_STATE_ENABLING) ||
-                                         (wifiApState == WifiManager.WIFI_AP_STATE_ENABLED))) {
-                        wifiManager.setWifiApEnabled(null, false);
-                    }
+            // This runs on the worker thread, as the wifi change and
+            // persistent settings write can take a user-noticeable
+            // amount of time, especially if there's disk contention.
 
-                    wifiManager.setWifiEnabled(desiredState);
-                    return null;
-                }
-            }.execute();
+            // Disable tethering if enabling Wifi
+            int wifiApState = wifiManager.getWifiApState();
+            if (desiredState && ((wifiApState == WifiManager.WIFI_AP_STATE_ENABLING) ||
+                                 (wifiApState == WifiManager.WIFI_AP_STATE_ENABLED))) {
+                wifiManager.setWifiApEnabled(null, false);
+            }
+
+            wifiManager.setWifiEnabled(desiredState);
         }
 
         @Override
@@ -463,17 +499,10 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                 Log.d(TAG, "No LocalBluetoothManager");
                 return;
             }
-            // Actually request the Bluetooth change and persistent
-            // settings write off the UI thread, as it can take a
-            // user-noticeable amount of time, especially if there's
-            // disk contention.
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... args) {
-                    sLocalBluetoothAdapter.setBluetoothEnabled(desiredState);
-                    return null;
-                }
-            }.execute();
+            // This runs on the worker thread, as the Bluetooth change
+            // and persistent settings write can take a user-noticeable
+            // amount of time, especially if there's disk contention.
+            sLocalBluetoothAdapter.setBluetoothEnabled(desiredState);
         }
 
         @Override
@@ -548,44 +577,34 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
         @Override
         public void requestStateChange(final Context context, final boolean desiredState) {
             final ContentResolver resolver = context.getContentResolver();
-            new AsyncTask<Void, Void, Boolean>() {
-                @Override
-                protected Boolean doInBackground(Void... args) {
-                    final UserManager um =
-                            (UserManager) context.getSystemService(Context.USER_SERVICE);
-                    if (!um.hasUserRestriction(UserManager.DISALLOW_SHARE_LOCATION)) {
-                        int currentMode = Settings.Secure.getInt(resolver,
-                                Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF);
-                        int mode = Settings.Secure.LOCATION_MODE_HIGH_ACCURACY;
-                        switch (currentMode) {
-                            case Settings.Secure.LOCATION_MODE_HIGH_ACCURACY:
-                                mode = Settings.Secure.LOCATION_MODE_BATTERY_SAVING;
-                                break;
-                            case Settings.Secure.LOCATION_MODE_BATTERY_SAVING:
-                                mode = Settings.Secure.LOCATION_MODE_HIGH_ACCURACY;
-                                break;
-                            case Settings.Secure.LOCATION_MODE_SENSORS_ONLY:
-                                mode = Settings.Secure.LOCATION_MODE_OFF;
-                                break;
-                            case Settings.Secure.LOCATION_MODE_OFF:
-                                mode = Settings.Secure.LOCATION_MODE_HIGH_ACCURACY;
-                                break;
-                        }
-                        Settings.Secure.putInt(resolver, Settings.Secure.LOCATION_MODE, mode);
-                        return mode != Settings.Secure.LOCATION_MODE_OFF;
-                    }
-
-                    return getActualState(context) == STATE_ENABLED;
+            final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+            boolean result;
+            if (!um.hasUserRestriction(UserManager.DISALLOW_SHARE_LOCATION)) {
+                int currentMode = Settings.Secure.getInt(resolver,
+                        Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF);
+                int mode = Settings.Secure.LOCATION_MODE_HIGH_ACCURACY;
+                switch (currentMode) {
+                    case Settings.Secure.LOCATION_MODE_HIGH_ACCURACY:
+                        mode = Settings.Secure.LOCATION_MODE_BATTERY_SAVING;
+                        break;
+                    case Settings.Secure.LOCATION_MODE_BATTERY_SAVING:
+                        mode = Settings.Secure.LOCATION_MODE_HIGH_ACCURACY;
+                        break;
+                    case Settings.Secure.LOCATION_MODE_SENSORS_ONLY:
+                        mode = Settings.Secure.LOCATION_MODE_OFF;
+                        break;
+                    case Settings.Secure.LOCATION_MODE_OFF:
+                        mode = Settings.Secure.LOCATION_MODE_HIGH_ACCURACY;
+                        break;
                 }
+                Settings.Secure.putInt(resolver, Settings.Secure.LOCATION_MODE, mode);
+                result = mode != Settings.Secure.LOCATION_MODE_OFF;
+            } else {
+                result = getActualState(context) == STATE_ENABLED;
+            }
 
-                @Override
-                protected void onPostExecute(Boolean result) {
-                    setCurrentState(
-                        context,
-                        result ? STATE_ENABLED : STATE_DISABLED);
-                    updateWidget(context);
-                }
-            }.execute();
+            setCurrentState(context, result ? STATE_ENABLED : STATE_DISABLED);
+            updateWidget(context);
         }
     }
 
@@ -615,42 +634,66 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
 
         @Override
         public void requestStateChange(final Context context, final boolean desiredState) {
-            final ConnectivityManager connManager =
-                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
             final boolean sync = ContentResolver.getMasterSyncAutomatically();
+            if (desiredState != sync) {
+                ContentResolver.setMasterSyncAutomatically(desiredState);
+            }
 
-            new AsyncTask<Void, Void, Boolean>() {
-                @Override
-                protected Boolean doInBackground(Void... args) {
-                    // Turning sync on.
-                    if (desiredState) {
-                        if (!sync) {
-                            ContentResolver.setMasterSyncAutomatically(true);
-                        }
-                        return true;
-                    }
+            setCurrentState(context, desiredState ? STATE_ENABLED : STATE_DISABLED);
+            updateWidget(context);
+        }
+    }
 
-                    // Turning sync off
-                    if (sync) {
-                        ContentResolver.setMasterSyncAutomatically(false);
+    /**
+     * Handler of the worker thread, which owns the state trackers and
+     * performs the widget updates.
+     */
+    private static final class WorkerHandler extends Handler {
+        WorkerHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_UPDATE_WIDGET:
+                    final Context context = (Context) msg.obj;
+                    try {
+                        RemoteViews views = buildUpdate(context);
+                        final AppWidgetManager gm = AppWidgetManager.getInstance(context);
+                        gm.updateAppWidget(THIS_APPWIDGET, views);
+                        checkObserver(context);
+                    } finally {
+                        finishPendingResults();
                     }
-                    return false;
-                }
+                    break;
+            }
+        }
+    }
 
-                @Override
-                protected void onPostExecute(Boolean result) {
-                    setCurrentState(
-                        context,
-                        result ? STATE_ENABLED : STATE_DISABLED);
-                    updateWidget(context);
-                }
-            }.execute();
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            HandlerThread thread = new HandlerThread(TAG + ":Worker",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new WorkerHandler(thread.getLooper());
+        }
+        return sWorker;
+    }
+
+    /**
+     * Lets go of the broadcasts whose changes are now shown by the widget.
+     */
+    private static void finishPendingResults() {
+        for (int i = 0; i < sPendingResults.size(); i++) {
+            sPendingResults.get(i).finish();
         }
+        sPendingResults.clear();
     }
 
     private static void checkObserver(Context context) {
         if (sSettingsObserver == null) {
-            sSettingsObserver = new SettingsObserver(new Handler(),
+            sSettingsObserver = new SettingsObserver(getWorker(),
                     context.getApplicationContext());
             sSettingsObserver.startObserving();
         }
@@ -659,25 +702,56 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager,
             int[] appWidgetIds) {
-        // Update each requested appWidgetId
-        RemoteViews view = buildUpdate(context);
-
-        for (int i = 0; i < appWidgetIds.length; i++) {
-            appWidgetManager.updateAppWidget(appWidgetIds[i], view);
-        }
+        // A full update doesn't trust the cached states, in case a
+        // broadcast was missed. Every instance is updated at once, and
+        // the broadcast is kept alive until then.
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                sWifiState.invalidateActualState();
+                sBluetoothState.invalidateActualState();
+                sLocationState.invalidateActualState();
+                sSyncState.invalidateActualState();
+                sPendingResults.add(result);
+                updateWidget(appContext);
+            }
+        });
     }
 
     @Override
     public void onEnabled(Context context) {
-        checkObserver(context);
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkObserver(appContext);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
     }
 
     @Override
     public void onDisabled(Context context) {
-        if (sSettingsObserver != null) {
-            sSettingsObserver.stopObserving();
-            sSettingsObserver = null;
-        }
+        final PendingResult result = goAsync();
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (sSettingsObserver != null) {
+                        sSettingsObserver.stopObserving();
+                        sSettingsObserver = null;
+                    }
+                } finally {
+                    result.finish();
+                }
+            }
+        });
     }
 
     /**
@@ -706,15 +780,17 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
 
     /**
      * Updates the widget when something changes, or when a button is pushed.
+     * The update is done on the worker thread after a short delay, so that
+     * the changes requested in the meantime are shown by the same update.
      *
      * @param context
      */
     public static void updateWidget(Context context) {
-        RemoteViews views = buildUpdate(context);
-        // Update specific list of appWidgetIds if given, otherwise default to all
-        final AppWidgetManager gm = AppWidgetManager.getInstance(context);
-        gm.updateAppWidget(THIS_APPWIDGET, views);
-        checkObserver(context);
+        final Handler worker = getWorker();
+        if (!worker.hasMessages(MSG_UPDATE_WIDGET)) {
+            worker.sendMessageDelayed(worker.obtainMessage(MSG_UPDATE_WIDGET,
+                    context.getApplicationContext()), UPDATE_DELAY_MS);
+        }
     }
 
     /**
@@ -799,8 +875,43 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
      * @param intent  Indicates the pressed button.
      */
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
         super.onReceive(context, intent);
+        String action = intent.getAction();
+        if (!WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)
+                && !BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)
+                && !LocationManager.MODE_CHANGED_ACTION.equals(action)
+                && !ContentResolver.ACTION_SYNC_CONN_STATUS_CHANGED.equals(action)
+                && !intent.hasCategory(Intent.CATEGORY_ALTERNATIVE)) {
+            // Don't fall-through to updating the widget.  The Intent
+            // was something unrelated or that our super class took
+            // care of.
+            return;
+        }
+
+        // The state change is handled on the worker thread, and the
+        // broadcast is kept alive until the widget shows it.
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleStateChange(appContext, intent);
+                } catch (RuntimeException e) {
+                    // Still show the current state and let go of the broadcast.
+                    Log.w(TAG, "Unable to handle " + intent, e);
+                }
+                sPendingResults.add(result);
+                updateWidget(appContext);
+            }
+        });
+    }
+
+    /**
+     * Processes a button pressed intent or state change on the worker thread.
+     */
+    private static void handleStateChange(Context context, Intent intent) {
         String action = intent.getAction();
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             sWifiState.onActualStateChange(context, intent);
@@ -824,15 +935,7 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
             } else if (buttonId == BUTTON_BLUETOOTH) {
                 sBluetoothState.toggleState(context);
             }
-        } else {
-            // Don't fall-through to updating the widget.  The Intent
-            // was something unrelated or that our super class took
-            // care of.
-            return;
         }
-
-        // State changes fall through
-        updateWidget(context);
     }
 
     /**
@@ -873,7 +976,7 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
      *
      * @param context
      */
-    private void toggleBrightness(Context context) {
+    private static void toggleBrightness(Context context) {
         try {
             IPowerManager power = IPowerManager.Stub.asInterface(
                     ServiceManager.getService("power"));
@@ -115,6 +115,11 @@ class AccessPoint extends Preference {
     private WifiInfo mInfo;
     private DetailedState mState;
 
+    // Set while a round of scan results is applied, see beginScanResults().
+    private boolean mApplyingScanResults;
+    private int mLevelBeforeScanResults;
+    private boolean mNeedsRefresh;
+
     private static final int VISIBILITY_MAX_AGE_IN_MILLI = 1000000;
     private static final int VISIBILITY_OUTDATED_AGE_IN_MILLI = 20000;
     private static final int SECOND_TO_MILLI = 1000;
@@ -226,6 +231,76 @@ class AccessPoint extends Preference {
         }
     }
 
+    /**
+     * Key identifying this access point across scans: the saved network if any,
+     * otherwise the SSID and security.
+     */
+    String getCacheKey() {
+        return networkId != WifiConfiguration.INVALID_NETWORK_ID
+                ? getCacheKey(networkId, ssid, security) : getCacheKey(ssid, security);
+    }
+
+    static String getCacheKey(WifiConfiguration config) {
+        return getCacheKey(config.networkId,
+                config.SSID == null ? "" : removeDoubleQuotes(config.SSID), getSecurity(config));
+    }
+
+    static String getCacheKey(ScanResult result) {
+        return getCacheKey(result.SSID, getSecurity(result));
+    }
+
+    private static String getCacheKey(int networkId, String ssid, int security) {
+        return networkId + "/" + getCacheKey(ssid, security);
+    }
+
+    private static String getCacheKey(String ssid, int security) {
+        return security + "," + ssid;
+    }
+
+    /**
+     * Replace the saved network of this access point with a newer copy of it, as
+     * returned by {@link WifiManager#getConfiguredNetworks()}.
+     */
+    void updateConfig(WifiConfiguration config) {
+        if (mConfig == null || mConfig.status != config.status
+                || mConfig.disableReason != config.disableReason
+                || mConfig.autoJoinStatus != config.autoJoinStatus) {
+            mNeedsRefresh = true;
+        }
+        loadConfig(config);
+    }
+
+    /**
+     * Start applying a new round of scan results with {@link #update(ScanResult)}. The
+     * signal strength is recomputed from these results only, and the title, summary and
+     * icon are refreshed once by {@link #endScanResults()} if they changed.
+     */
+    void beginScanResults() {
+        mApplyingScanResults = true;
+        mLevelBeforeScanResults = getLevel();
+        mRssi = mInfo != null ? mInfo.getRssi() : Integer.MAX_VALUE;
+        if (mScanResultCache != null) {
+            mScanResultCache.evictAll();
+        }
+    }
+
+    /**
+     * Finish applying a round of scan results. Returns true if the signal level changed,
+     * in which case the position of this access point in the list may have changed too.
+     */
+    boolean endScanResults() {
+        mApplyingScanResults = false;
+        final boolean levelChanged = getLevel() != mLevelBeforeScanResults;
+        if (levelChanged || mNeedsRefresh || WifiSettings.mVerboseLogging > 0) {
+            mNeedsRefresh = false;
+            refresh();
+        }
+        if (levelChanged) {
+            notifyHierarchyChanged();
+        }
+        return levelChanged;
+    }
+
     private void loadConfig(WifiConfiguration config) {
         ssid = (config.SSID == null ? "" : removeDoubleQuotes(config.SSID));
         bssid = config.BSSID;
@@ -307,8 +382,9 @@ class AccessPoint extends Preference {
         if (networkId == WifiConfiguration.INVALID_NETWORK_ID
                 && other.networkId != WifiConfiguration.INVALID_NETWORK_ID) return 1;
 
-        // Sort by signal strength.
-        int difference = WifiManager.compareSignalLevel(other.mRssi, mRssi);
+        // Sort by signal level, so that the order only changes when the level shown
+        // by the icon does.
+        int difference = other.getLevel() - getLevel();
         if (difference != 0) {
             return difference;
         }
@@ -347,7 +423,7 @@ class AccessPoint extends Preference {
             if (WifiManager.compareSignalLevel(result.level, mRssi) > 0) {
                 int oldLevel = getLevel();
                 mRssi = result.level;
-                if (getLevel() != oldLevel) {
+                if (getLevel() != oldLevel && !mApplyingScanResults) {
                     notifyChanged();
                 }
             }
@@ -356,7 +432,9 @@ class AccessPoint extends Preference {
                 pskType = getPskType(result);
             }
             mScanResult = result;
-            refresh();
+            if (!mApplyingScanResults) {
+                refresh();
+            }
             return true;
         }
         return false;
@@ -74,7 +74,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -135,6 +137,11 @@ public class WifiSettings extends RestrictedSettingsFragment
     private DetailedState mLastState;
     private WifiInfo mLastInfo;
 
+    // Access points by AccessPoint.getCacheKey(), kept across scans so that new scan
+    // results only patch the list instead of rebuilding it.
+    private final HashMap<String, AccessPoint> mAccessPointCache =
+            new HashMap<String, AccessPoint>();
+
     private final AtomicBoolean mConnected = new AtomicBoolean(false);
 
     private WifiDialog mDialog;
@@ -162,7 +169,7 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     /* End of "used in Wifi Setup context" */
 
-    /** A restricted multimap for use in constructAccessPoints */
+    /** A restricted multimap for use in constructAccessPoints and updateAccessPointCache */
     private static class Multimap<K,V> {
         private final HashMap<K,List<V>> store = new HashMap<K,List<V>>();
         /** retrieve a non-null list of values with key K */
@@ -649,11 +656,8 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints =
-                        constructAccessPoints(getActivity(), mWifiManager, mLastInfo, mLastState);
-                getPreferenceScreen().removeAll();
-                if (accessPoints.size() == 0) {
+                updateAccessPointCache();
+                if (mAccessPointCache.size() == 0) {
                     addMessagePreference(R.string.wifi_empty_list_wifi_on);
                 }
 
@@ -662,10 +666,27 @@ public class WifiSettings extends RestrictedSettingsFragment
                     getListView().addHeaderView(mWifiAssistantCard);
                 }
 
-                for (AccessPoint accessPoint : accessPoints) {
+                // Patch the list: drop the access points that are gone or out of range and
+                // add the new ones.  The screen keeps the access points sorted.
+                final PreferenceScreen screen = getPreferenceScreen();
+                final Set<AccessPoint> shown = Collections.newSetFromMap(
+                        new IdentityHashMap<AccessPoint, Boolean>());
+                for (int i = screen.getPreferenceCount() - 1; i >= 0; --i) {
+                    final Preference preference = screen.getPreference(i);
+                    if (preference instanceof AccessPoint) {
+                        final AccessPoint accessPoint = (AccessPoint) preference;
+                        if (mAccessPointCache.get(accessPoint.getCacheKey()) == accessPoint
+                                && accessPoint.getLevel() != -1) {
+                            shown.add(accessPoint);
+                            continue;
+                        }
+                    }
+                    screen.removePreference(preference);
+                }
+                for (AccessPoint accessPoint : mAccessPointCache.values()) {
                     // Ignore access points that are out of range.
-                    if (accessPoint.getLevel() != -1) {
-                        getPreferenceScreen().addPreference(accessPoint);
+                    if (accessPoint.getLevel() != -1 && !shown.contains(accessPoint)) {
+                        screen.addPreference(accessPoint);
                     }
                 }
                 break;
@@ -811,6 +832,89 @@ public class WifiSettings extends RestrictedSettingsFragment
         getPreferenceScreen().removeAll();
     }
 
+    /**
+     * Brings {@link #mAccessPointCache} up to date with the saved networks and the latest
+     * scan results.  Existing access points are updated in place, and only refresh their
+     * title, summary, icon or position when these changed.
+     */
+    private void updateAccessPointCache() {
+        final Context context = getActivity();
+        final HashMap<String, AccessPoint> accessPoints = new HashMap<String, AccessPoint>();
+        /** Lookup table to more quickly update AccessPoints by only considering objects with the
+         * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
+        Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
+
+        final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
+        if (configs != null) {
+            updateSavedNetworksExist(context, configs);
+            for (WifiConfiguration config : configs) {
+                if (config.selfAdded && config.numAssociation == 0) {
+                    continue;
+                }
+                final String key = AccessPoint.getCacheKey(config);
+                AccessPoint accessPoint = mAccessPointCache.get(key);
+                if (accessPoint == null) {
+                    accessPoint = new AccessPoint(context, config);
+                } else {
+                    accessPoint.updateConfig(config);
+                }
+                if (mLastInfo != null && mLastState != null) {
+                    accessPoint.update(mLastInfo, mLastState);
+                } else {
+                    accessPoint.update(null, null);
+                }
+                accessPoint.beginScanResults();
+                accessPoints.put(key, accessPoint);
+                apMap.put(accessPoint.ssid, accessPoint);
+            }
+        }
+
+        final List<ScanResult> results = mWifiManager.getScanResults();
+        if (results != null) {
+            for (ScanResult result : results) {
+                // Ignore hidden and ad-hoc networks.
+                if (result.SSID == null || result.SSID.length() == 0 ||
+                        result.capabilities.contains("[IBSS]")) {
+                    continue;
+                }
+
+                boolean found = false;
+                for (AccessPoint accessPoint : apMap.getAll(result.SSID)) {
+                    if (accessPoint.update(result))
+                        found = true;
+                }
+                if (!found) {
+                    final String key = AccessPoint.getCacheKey(result);
+                    AccessPoint accessPoint = mAccessPointCache.get(key);
+                    if (accessPoint == null) {
+                        accessPoint = new AccessPoint(context, result);
+                    }
+                    accessPoint.beginScanResults();
+                    accessPoint.update(result);
+                    accessPoints.put(key, accessPoint);
+                    apMap.put(accessPoint.ssid, accessPoint);
+                }
+            }
+        }
+
+        for (AccessPoint accessPoint : accessPoints.values()) {
+            accessPoint.endScanResults();
+        }
+        mAccessPointCache.clear();
+        mAccessPointCache.putAll(accessPoints);
+    }
+
+    /** Update "Saved Networks" menu option. */
+    private static void updateSavedNetworksExist(Context context,
+            List<WifiConfiguration> configs) {
+        if (savedNetworksExist != (configs.size() > 0)) {
+            savedNetworksExist = !savedNetworksExist;
+            if (context instanceof Activity) {
+                ((Activity) context).invalidateOptionsMenu();
+            }
+        }
+    }
+
     /** Returns sorted list of access points */
     private static List<AccessPoint> constructAccessPoints(Context context,
             WifiManager wifiManager, WifiInfo lastInfo, DetailedState lastState) {
@@ -821,13 +925,7 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         final List<WifiConfiguration> configs = wifiManager.getConfiguredNetworks();
         if (configs != null) {
-            // Update "Saved Networks" menu option.
-            if (savedNetworksExist != (configs.size() > 0)) {
-                savedNetworksExist = !savedNetworksExist;
-                if (context instanceof Activity) {
-                    ((Activity) context).invalidateOptionsMenu();
-                }
-            }
+            updateSavedNetworksExist(context, configs);
             for (WifiConfiguration config : configs) {
                 if (config.selfAdded && config.numAssociation == 0) {
                     continue;
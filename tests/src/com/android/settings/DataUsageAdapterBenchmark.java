@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.content.Context;
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+
+import com.android.settings.DataUsageSummary.AppItem;
+import com.android.settings.DataUsageSummary.DataUsageAdapter;
+import com.android.settings.net.UidDetailProvider;
+import com.android.settings.tests.BenchmarkRunner;
+import com.android.settings.tests.BenchmarkTestCase;
+
+import java.util.Random;
+
+/**
+ * Benchmark of {@link DataUsageAdapter#bindStats}.
+ *
+ * Binds synthetic {@link NetworkStats} summaries of increasing sizes, spread over several
+ * users, interfaces and sets, and reads the items of the first screen as the list does. A
+ * full scroll, which sorts the remaining items, is measured separately. Run with
+ * {@link BenchmarkRunner}. The order of the items is checked by the test suite.
+ */
+public class DataUsageAdapterBenchmark extends BenchmarkTestCase {
+
+    private static final String TAG = "DataUsageAdapterBenchmark";
+
+    private static final int[] SIZES = { 100, 1000, 10000 };
+    private static final String[] IFACES = { "wlan0", "rmnet0", "rmnet1" };
+    private static final int[] USERS = { UserHandle.USER_OWNER, 10, 11 };
+
+    private static final int FIRST_SCREEN_ITEMS = 20;
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 50;
+
+    private DataUsageAdapter mAdapter;
+
+    public DataUsageAdapterBenchmark() {
+        super(TAG);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getInstrumentation().getTargetContext();
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mAdapter = new DataUsageAdapter(um, new UidDetailProvider(context), 0);
+    }
+
+    public void benchmarkBindStats() {
+        for (int size : SIZES) {
+            final NetworkStats stats = buildStats(size);
+            for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+                bindFirstScreen(stats);
+            }
+
+            final long[] samples = new long[ITERATIONS];
+            for (int n = 0; n < ITERATIONS; n++) {
+                final long start = System.nanoTime();
+                bindFirstScreen(stats);
+                samples[n] = System.nanoTime() - start;
+            }
+            report("bind_" + size, samples);
+        }
+    }
+
+    public void benchmarkScroll() {
+        for (int size : SIZES) {
+            final NetworkStats stats = buildStats(size);
+            final long[] samples = new long[ITERATIONS];
+            for (int n = 0; n < ITERATIONS; n++) {
+                bindFirstScreen(stats);
+                final long start = System.nanoTime();
+                final int count = mAdapter.getCount();
+                for (int i = 0; i < count; i++) {
+                    mAdapter.getItem(i);
+                }
+                samples[n] = System.nanoTime() - start;
+            }
+            report("scroll_" + size, samples);
+        }
+    }
+
+    public void testOrder() {
+        mAdapter.bindStats(buildStats(1000), new int[0]);
+        final int count = mAdapter.getCount();
+        for (int i = 1; i < count; i++) {
+            final AppItem previous = (AppItem) mAdapter.getItem(i - 1);
+            final AppItem item = (AppItem) mAdapter.getItem(i);
+            assertTrue(previous.compareTo(item) <= 0);
+        }
+    }
+
+    private void bindFirstScreen(NetworkStats stats) {
+        mAdapter.bindStats(stats, new int[0]);
+        final int count = Math.min(mAdapter.getCount(), FIRST_SCREEN_ITEMS);
+        for (int i = 0; i < count; i++) {
+            mAdapter.getItem(i);
+        }
+    }
+
+    /**
+     * Build a summary of the given number of entries, with about four
+     * entries per UID, as the summary has one per interface and set.
+     */
+    private static NetworkStats buildStats(int size) {
+        final Random random = new Random(size);
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), size);
+        final int appCount = Math.max(1, size / 4);
+        for (int i = 0; i < size; i++) {
+            final int app = random.nextInt(appCount);
+            final int userId = USERS[app % USERS.length];
+            final int uid = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + app);
+            final String iface = IFACES[random.nextInt(IFACES.length)];
+            final int set = random.nextBoolean() ? SET_DEFAULT : SET_FOREGROUND;
+            final long rxBytes = random.nextInt(100 * 1024 * 1024);
+            final long txBytes = random.nextInt(10 * 1024 * 1024);
+            stats.addValues(new NetworkStats.Entry(iface, uid, set, TAG_NONE, rxBytes,
+                    rxBytes / 1024, txBytes, txBytes / 1024, 0L));
+        }
+        return stats;
+    }
+}
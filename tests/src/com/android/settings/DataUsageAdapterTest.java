@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.test.AndroidTestCase;
+
+import com.android.settings.DataUsageSummary.AppItem;
+import com.android.settings.DataUsageSummary.DataUsageAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+public class DataUsageAdapterTest extends AndroidTestCase {
+
+    public void testUidTotalsAccumulates() {
+        final DataUsageAdapter.UidTotals totals = new DataUsageAdapter.UidTotals();
+        totals.add(10001, 5);
+        totals.add(1000, 7);
+        totals.add(10001, 20);
+
+        assertEquals(2, totals.size);
+        assertEquals(10001, totals.uids[0]);
+        assertEquals(25, totals.totals[0]);
+        assertEquals(1000, totals.uids[1]);
+        assertEquals(7, totals.totals[1]);
+    }
+
+    public void testUidTotalsGrowsAndHandlesCollisions() {
+        final DataUsageAdapter.UidTotals totals = new DataUsageAdapter.UidTotals();
+        final HashMap<Integer, Long> expected = new HashMap<Integer, Long>();
+        final Random random = new Random(0);
+
+        // Far more UIDs than the initial capacity, including clustered and negative ones,
+        // so that the table is rehashed several times and probes past occupied slots
+        for (int n = 0; n < 20000; n++) {
+            final int uid;
+            switch (n % 3) {
+                case 0: uid = 10000 + random.nextInt(3000); break;
+                case 1: uid = random.nextInt(); break;
+                default: uid = (random.nextInt(64) << 20) | 10000; break;
+            }
+            final long bytes = random.nextInt(1000);
+            totals.add(uid, bytes);
+            final Long previous = expected.get(uid);
+            expected.put(uid, (previous != null ? previous : 0) + bytes);
+        }
+
+        assertEquals(expected.size(), totals.size);
+        for (int i = 0; i < totals.size; i++) {
+            final Long total = expected.remove(totals.uids[i]);
+            assertNotNull("Unexpected or duplicate uid " + totals.uids[i], total);
+            assertEquals(total.longValue(), totals.totals[i]);
+        }
+    }
+
+    public void testUidTotalsClear() {
+        final DataUsageAdapter.UidTotals totals = new DataUsageAdapter.UidTotals();
+        for (int uid = 0; uid < 500; uid++) {
+            totals.add(uid, uid);
+        }
+        totals.clear();
+        assertEquals(0, totals.size);
+
+        totals.add(42, 1);
+        totals.add(42, 2);
+        assertEquals(1, totals.size);
+        assertEquals(42, totals.uids[0]);
+        assertEquals(3, totals.totals[0]);
+    }
+
+    public void testSelectHeadMatchesFullSort() {
+        final Random random = new Random(0);
+        final int[] sizes = { 2, 10, 33, 100, 1000 };
+        for (int size : sizes) {
+            for (int count = 1; count <= size; count = count * 3 + 1) {
+                // Few distinct totals, so that there are many ties
+                final ArrayList<AppItem> items = new ArrayList<AppItem>();
+                for (int n = 0; n < size; n++) {
+                    final AppItem item = new AppItem(n);
+                    item.category = (n % 7 == 0)
+                            ? AppItem.CATEGORY_USER : AppItem.CATEGORY_APP;
+                    item.total = random.nextInt(size / 2 + 1);
+                    items.add(item);
+                }
+                final ArrayList<AppItem> sorted = new ArrayList<AppItem>(items);
+                Collections.sort(sorted);
+
+                DataUsageAdapter.selectHead(items, count);
+
+                assertEquals(size, items.size());
+                final List<AppItem> head = new ArrayList<AppItem>(items.subList(0, count));
+                Collections.sort(head);
+                for (int n = 0; n < count; n++) {
+                    assertEquals("size " + size + " count " + count + " at " + n,
+                            0, head.get(n).compareTo(sorted.get(n)));
+                }
+                // Nothing in the tail sorts before the last item of the head
+                final AppItem last = head.get(count - 1);
+                for (int n = count; n < size; n++) {
+                    assertTrue(items.get(n).compareTo(last) >= 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+
+import com.android.settings.tests.BenchmarkRunner;
+import com.android.settings.tests.BenchmarkTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Contention benchmark of {@link ApplicationsState}.
+ *
+ * Measures the latency of the calls the UI thread makes (getEntry, ensureIcon and
+ * sumCacheSizes) while a writer thread keeps invalidating packages, which makes the loader
+ * thread rebuild lists and recreate entries. Run with {@link BenchmarkRunner}.
+ */
+public class ApplicationsStateBenchmark extends BenchmarkTestCase {
+
+    private static final String TAG = "ApplicationsStateBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 2000;
+
+    private static final ApplicationsState.Callbacks NO_CALLBACKS =
+            new ApplicationsState.Callbacks() {
+        @Override
+        public void onRunningStateChanged(boolean running) {
+        }
+
+        @Override
+        public void onPackageListChanged() {
+        }
+
+        @Override
+        public void onRebuildComplete(ArrayList<ApplicationsState.AppEntry> apps) {
+        }
+
+        @Override
+        public void onPackageIconChanged() {
+        }
+
+        @Override
+        public void onPackageSizeChanged(String packageName) {
+        }
+
+        @Override
+        public void onAllSizesComputed() {
+        }
+    };
+
+    public ApplicationsStateBenchmark() {
+        super(TAG);
+    }
+
+    public void benchmarkUiThreadLatencyUnderLoad() throws Exception {
+        final Application app = (Application) getInstrumentation().getTargetContext()
+                .getApplicationContext();
+        final ApplicationsState state = ApplicationsState.getInstance(app);
+        final ApplicationsState.Session session = state.newSession(NO_CALLBACKS);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                session.resume();
+            }
+        });
+
+        final List<ApplicationInfo> apps = state.mSnapshot.applications;
+        assertTrue(apps.size() > 0);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread writer = new Thread(TAG + ".Writer") {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!done.get()) {
+                    state.invalidatePackage(apps.get(i % apps.size()).packageName);
+                    session.rebuild(null, ApplicationsState.ALPHA_COMPARATOR);
+                    i++;
+                }
+            }
+        };
+
+        final long[] samples = new long[ITERATIONS];
+        writer.start();
+        try {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                        readOnce(state, apps.get(i % apps.size()).packageName);
+                    }
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        final long start = System.nanoTime();
+                        readOnce(state, apps.get(i % apps.size()).packageName);
+                        samples[i] = System.nanoTime() - start;
+                    }
+                }
+            });
+        } finally {
+            done.set(true);
+            writer.join();
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    session.release();
+                }
+            });
+        }
+
+        report("ui_thread", samples);
+    }
+
+    private static void readOnce(ApplicationsState state, String packageName) {
+        final ApplicationsState.AppEntry entry = state.getEntry(packageName);
+        if (entry != null) {
+            state.ensureIcon(entry);
+        }
+        state.sumCacheSizes();
+    }
+}
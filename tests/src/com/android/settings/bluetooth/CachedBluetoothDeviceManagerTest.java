@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tests that the devices indexed by address and the devices kept in discovery order stay in
+ * sync. The devices are unknown to the adapter, so they are never bonded.
+ */
+public class CachedBluetoothDeviceManagerTest extends AndroidTestCase {
+
+    private static final String ADDRESS_1 = "00:11:22:AA:BB:01";
+    private static final String ADDRESS_2 = "00:11:22:AA:BB:02";
+    private static final String ADDRESS_3 = "00:11:22:AA:BB:03";
+
+    private LocalBluetoothManager mLocalManager;
+    private CachedBluetoothDeviceManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalManager = LocalBluetoothManager.getInstance(getContext());
+        mManager = new CachedBluetoothDeviceManager(getContext());
+    }
+
+    public void testAddDeviceReturnsExistingDevice() {
+        if (mLocalManager == null) {
+            // Bluetooth is not supported
+            return;
+        }
+        final CachedBluetoothDevice first = addDevice(ADDRESS_1);
+        assertSame(first, mManager.findDevice(getRemoteDevice(ADDRESS_1)));
+
+        // Another BluetoothDevice object for the same address maps to the same cached device
+        assertSame(first, addDevice(ADDRESS_1));
+        assertEquals(Arrays.asList(first), new ArrayList<CachedBluetoothDevice>(
+                mManager.getCachedDevicesCopy()));
+
+        assertNull(mManager.findDevice(getRemoteDevice(ADDRESS_2)));
+    }
+
+    public void testDevicesAreKeptInDiscoveryOrder() {
+        if (mLocalManager == null) {
+            return;
+        }
+        final CachedBluetoothDevice device2 = addDevice(ADDRESS_2);
+        final CachedBluetoothDevice device1 = addDevice(ADDRESS_1);
+        final CachedBluetoothDevice device3 = addDevice(ADDRESS_3);
+        addDevice(ADDRESS_1);
+
+        assertEquals(Arrays.asList(device2, device1, device3),
+                new ArrayList<CachedBluetoothDevice>(mManager.getCachedDevicesCopy()));
+    }
+
+    public void testSnapshotIsSharedUntilDevicesChange() {
+        if (mLocalManager == null) {
+            return;
+        }
+        addDevice(ADDRESS_1);
+        final Collection<CachedBluetoothDevice> snapshot = mManager.getCachedDevicesCopy();
+        assertSame(snapshot, mManager.getCachedDevicesCopy());
+
+        // Finding the existing device is not a change
+        addDevice(ADDRESS_1);
+        assertSame(snapshot, mManager.getCachedDevicesCopy());
+
+        addDevice(ADDRESS_2);
+        final Collection<CachedBluetoothDevice> changed = mManager.getCachedDevicesCopy();
+        assertNotSame(snapshot, changed);
+        assertEquals(1, snapshot.size());
+        assertEquals(2, changed.size());
+
+        try {
+            changed.clear();
+            fail("The cached devices can be modified");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    public void testClearNonBondedDevicesRemovesFromBoth() {
+        if (mLocalManager == null) {
+            return;
+        }
+        final CachedBluetoothDevice device1 = addDevice(ADDRESS_1);
+        addDevice(ADDRESS_2);
+
+        mManager.clearNonBondedDevices();
+        assertTrue(mManager.getCachedDevicesCopy().isEmpty());
+        assertNull(mManager.findDevice(getRemoteDevice(ADDRESS_1)));
+        assertNull(mManager.findDevice(getRemoteDevice(ADDRESS_2)));
+
+        // A removed device is cached again as a new object
+        final CachedBluetoothDevice added = addDevice(ADDRESS_1);
+        assertNotSame(device1, added);
+        assertSame(added, mManager.findDevice(getRemoteDevice(ADDRESS_1)));
+        assertEquals(Arrays.asList(added), new ArrayList<CachedBluetoothDevice>(
+                mManager.getCachedDevicesCopy()));
+    }
+
+    public void testTurningOffRemovesNonBondedDevicesFromBoth() {
+        if (mLocalManager == null) {
+            return;
+        }
+        addDevice(ADDRESS_1);
+        addDevice(ADDRESS_2);
+
+        mManager.onBluetoothStateChanged(BluetoothAdapter.STATE_ON);
+        assertEquals(2, mManager.getCachedDevicesCopy().size());
+
+        mManager.onBluetoothStateChanged(BluetoothAdapter.STATE_TURNING_OFF);
+        assertTrue(mManager.getCachedDevicesCopy().isEmpty());
+        assertNull(mManager.findDevice(getRemoteDevice(ADDRESS_1)));
+        assertNull(mManager.findDevice(getRemoteDevice(ADDRESS_2)));
+    }
+
+    private CachedBluetoothDevice addDevice(String address) {
+        return mManager.addDevice(mLocalManager.getBluetoothAdapter(),
+                mLocalManager.getProfileManager(), getRemoteDevice(address));
+    }
+
+    private static BluetoothDevice getRemoteDevice(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+}
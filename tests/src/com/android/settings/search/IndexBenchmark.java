@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.settings.tests.BenchmarkRunner;
+import com.android.settings.tests.BenchmarkTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Benchmarks of the search Index.
+ *
+ * Replays a fixed corpus of queries, as typed one character at a time, and a full indexing of
+ * the Settings own indexables. Each benchmark is warmed up before being measured. Run with
+ * {@link BenchmarkRunner}.
+ */
+public class IndexBenchmark extends BenchmarkTestCase {
+
+    private static final String TAG = "IndexBenchmark";
+
+    private static final String[] QUERIES = {
+        "wifi",
+        "bluetooth",
+        "battery",
+        "display",
+        "data usage",
+        "lock screen",
+        "location",
+        "sound",
+        "don't",
+        "zzzz",
+    };
+
+    private static final int SEARCH_WARMUP_ITERATIONS = 3;
+    private static final int SEARCH_ITERATIONS = 10;
+
+    private static final int INDEXING_WARMUP_ITERATIONS = 1;
+    private static final int INDEXING_ITERATIONS = 3;
+
+    private Context mContext;
+    private Index mIndex;
+
+    public IndexBenchmark() {
+        super(TAG);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mIndex = Index.getInstance(mContext);
+        mIndex.updateOwnIndexablesAndWait();
+    }
+
+    public void benchmarkSearch() {
+        for (int n = 0; n < SEARCH_WARMUP_ITERATIONS; n++) {
+            runQueries();
+        }
+        mIndex.getMetrics().reset();
+
+        final long[] samples = new long[SEARCH_ITERATIONS];
+        for (int n = 0; n < SEARCH_ITERATIONS; n++) {
+            final long start = System.nanoTime();
+            runQueries();
+            samples[n] = System.nanoTime() - start;
+        }
+        report("search", samples, dumpMetrics());
+    }
+
+    public void benchmarkIndexing() {
+        for (int n = 0; n < INDEXING_WARMUP_ITERATIONS; n++) {
+            reindex();
+        }
+        mIndex.getMetrics().reset();
+
+        final long[] samples = new long[INDEXING_ITERATIONS];
+        for (int n = 0; n < INDEXING_ITERATIONS; n++) {
+            final long start = System.nanoTime();
+            reindex();
+            samples[n] = System.nanoTime() - start;
+        }
+        report("indexing", samples, dumpMetrics());
+    }
+
+    private void runQueries() {
+        for (String query : QUERIES) {
+            for (int n = 1; n <= query.length(); n++) {
+                final Cursor cursor = mIndex.search(query.substring(0, n));
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Forget the provider fingerprints so that everything is parsed and written again.
+     */
+    private void reindex() {
+        final SQLiteDatabase db = IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+        db.delete(IndexDatabaseHelper.Tables.TABLE_META_INDEX,
+                IndexDatabaseHelper.MetaColumns.PROVIDER_KEY + " IS NOT NULL", null);
+        mIndex.updateOwnIndexablesAndWait();
+    }
+
+    private String dumpMetrics() {
+        final StringWriter metrics = new StringWriter();
+        mIndex.getMetrics().dump("", new PrintWriter(metrics));
+        return metrics.toString();
+    }
+}
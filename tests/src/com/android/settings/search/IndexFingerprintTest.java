@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+import android.provider.SearchIndexableResource;
+import android.test.InstrumentationTestCase;
+
+import com.android.settings.search.IndexDatabaseHelper.MetaColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the Index only re-indexes the providers whose fingerprint changed, unless the
+ * update is forced. Runs against the Index database of Settings, which is left fully indexed.
+ */
+public class IndexFingerprintTest extends InstrumentationTestCase {
+
+    private static final long UPDATE_TIMEOUT_SECONDS = 60;
+
+    private Context mContext;
+    private Index mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mIndex = Index.getInstance(mContext);
+        mIndex.updateOwnIndexablesAndWait();
+        mIndex.getMetrics().reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndex.updateOwnIndexablesAndWait();
+        super.tearDown();
+    }
+
+    public void testUnchangedProvidersAreSkipped() {
+        final Map<String, Long> fingerprints = getFingerprints();
+        assertFalse("No provider fingerprint stored", fingerprints.isEmpty());
+
+        mIndex.updateOwnIndexablesAndWait();
+
+        // Only the providers that are never fingerprinted, like the dynamic ones, are indexed
+        final Set<String> indexed = getIndexedProviders();
+        for (String providerKey : fingerprints.keySet()) {
+            assertFalse(providerKey + " was re-indexed", indexed.contains(providerKey));
+        }
+        assertEquals(fingerprints, getFingerprints());
+    }
+
+    public void testChangedProviderIsReindexed() {
+        final Map<String, Long> fingerprints = getFingerprints();
+        final String changed = fingerprints.keySet().iterator().next();
+        final long fingerprint = fingerprints.get(changed);
+        setFingerprint(changed, fingerprint + 1);
+
+        mIndex.updateOwnIndexablesAndWait();
+
+        final Set<String> indexed = getIndexedProviders();
+        assertTrue(changed + " was not re-indexed", indexed.contains(changed));
+        for (String providerKey : fingerprints.keySet()) {
+            if (!providerKey.equals(changed)) {
+                assertFalse(providerKey + " was re-indexed", indexed.contains(providerKey));
+            }
+        }
+        // The fingerprint of the current content is stored back
+        assertEquals(fingerprints, getFingerprints());
+    }
+
+    public void testForcedProviderIsReindexed() throws Exception {
+        final Map<String, Long> fingerprints = getFingerprints();
+        SearchIndexableResource forced = null;
+        String forcedKey = null;
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            final String providerKey = getProviderKey(res);
+            if (fingerprints.containsKey(providerKey)) {
+                forced = res;
+                forcedKey = providerKey;
+                break;
+            }
+        }
+        assertNotNull("No fingerprinted resource", forced);
+
+        mIndex.updateFromClassNameResource(forced.className, false, true);
+        waitForUpdates();
+
+        assertTrue(forcedKey + " was not re-indexed", getIndexedProviders().contains(forcedKey));
+        // Its fingerprint is dropped so that the next update indexes it again
+        assertFalse(getFingerprints().containsKey(forcedKey));
+
+        mIndex.getMetrics().reset();
+        mIndex.updateOwnIndexablesAndWait();
+        assertTrue(forcedKey + " was not re-indexed", getIndexedProviders().contains(forcedKey));
+        assertTrue(getFingerprints().containsKey(forcedKey));
+    }
+
+    private String getProviderKey(SearchIndexableResource res) {
+        return mContext.getPackageName() + "/" + res.className + "/" + res.xmlResId;
+    }
+
+    private Set<String> getIndexedProviders() {
+        final Set<String> result = new HashSet<String>();
+        for (IndexMetrics.ProviderStats stats : mIndex.getMetrics().getProviderStats()) {
+            result.add(stats.providerKey);
+        }
+        return result;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+    }
+
+    private Map<String, Long> getFingerprints() {
+        final Map<String, Long> result = new HashMap<String, Long>();
+        final Cursor cursor = getDatabase().query(Tables.TABLE_META_INDEX,
+                new String[] { MetaColumns.PROVIDER_KEY, MetaColumns.FINGERPRINT },
+                MetaColumns.LOCALE + "=? AND " + MetaColumns.FINGERPRINT + " IS NOT NULL",
+                new String[] { Locale.getDefault().toString() }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private void setFingerprint(String providerKey, long fingerprint) {
+        final ContentValues values = new ContentValues();
+        values.put(MetaColumns.FINGERPRINT, fingerprint);
+        assertEquals(1, getDatabase().update(Tables.TABLE_META_INDEX, values,
+                MetaColumns.LOCALE + "=? AND " + MetaColumns.PROVIDER_KEY + "=?",
+                new String[] { Locale.getDefault().toString(), providerKey }));
+    }
+
+    /**
+     * Wait for the updates started by the Index, which run one after the other on the serial
+     * executor of AsyncTask.
+     */
+    private static void waitForUpdates() throws Exception {
+        final FutureTask<Void> barrier = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        AsyncTask.SERIAL_EXECUTOR.execute(barrier);
+        barrier.get(UPDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Generates the prebuilt search Index database shipped as an asset of Settings.
+ *
+ * It indexes the Settings own indexables for every locale of the system, then exports the
+ * database. This wipes the Index of the device and changes the default locale while running,
+ * so it is its own instrumentation and never part of the test suite. Run it on a device
+ * flashed with the Settings APK to ship, then copy the result into the assets of Settings and
+ * rebuild:
+ *
+ *   make SettingsTests
+ *   adb install -r SettingsTests.apk
+ *   adb shell am instrument -w \
+ *    com.android.settings.tests/com.android.settings.search.PrebuiltIndexGenerator
+ *   adb pull /sdcard/Android/data/com.android.settings/files/search_index.db \
+ *    packages/apps/Settings/assets/search_index.db
+ *
+ * You can restrict the locales with "-e locales fr_FR,de_DE".
+ */
+public class PrebuiltIndexGenerator extends Instrumentation {
+
+    private static final String TAG = "PrebuiltIndexGenerator";
+
+    private static final String ARGUMENT_LOCALES = "locales";
+    private static final String RESULT_PATH = "path";
+    private static final String RESULT_ERROR = "error";
+
+    private String mLocales;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mLocales = (arguments != null) ? arguments.getString(ARGUMENT_LOCALES) : null;
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        final Bundle results = new Bundle();
+        try {
+            final File destination = generate();
+            results.putString(RESULT_PATH, destination.getPath());
+            finish(Activity.RESULT_OK, results);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the prebuilt Index", e);
+            results.putString(RESULT_ERROR, e.toString());
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    private File generate() throws IOException {
+        final Context context = getTargetContext();
+        final Resources res = context.getResources();
+        final Configuration savedConfig = new Configuration(res.getConfiguration());
+        final Locale savedLocale = Locale.getDefault();
+
+        final IndexDatabaseHelper helper = IndexDatabaseHelper.getInstance(context);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        db.delete(IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX, null, null);
+        db.delete(IndexDatabaseHelper.Tables.TABLE_META_INDEX,
+                IndexDatabaseHelper.MetaColumns.PROVIDER_KEY + " IS NOT NULL", null);
+
+        try {
+            for (String localeStr : getLocales()) {
+                final Locale locale = parseLocale(localeStr);
+                if (locale == null) {
+                    continue;
+                }
+                final long start = System.currentTimeMillis();
+
+                Locale.setDefault(locale);
+                final Configuration config = new Configuration(savedConfig);
+                config.locale = locale;
+                res.updateConfiguration(config, res.getDisplayMetrics());
+
+                Index.getInstance(context).updateOwnIndexablesAndWait();
+
+                Log.i(TAG, "Indexed locale '" + locale + "' in " +
+                        (System.currentTimeMillis() - start) + " millis");
+            }
+        } finally {
+            Locale.setDefault(savedLocale);
+            res.updateConfiguration(savedConfig, res.getDisplayMetrics());
+        }
+
+        final File destination = new File(context.getExternalFilesDir(null),
+                IndexDatabaseHelper.PREBUILT_DATABASE_ASSET);
+        helper.exportPrebuiltDatabase(destination);
+        Log.i(TAG, "Prebuilt Index written to " + destination.getPath());
+        return destination;
+    }
+
+    private String[] getLocales() {
+        if (!TextUtils.isEmpty(mLocales)) {
+            return mLocales.split(",");
+        }
+        return Resources.getSystem().getAssets().getLocales();
+    }
+
+    private static Locale parseLocale(String localeStr) {
+        final String[] parts = localeStr.trim().split("[-_]");
+        if (parts.length == 0 || TextUtils.isEmpty(parts[0])) {
+            return null;
+        }
+        return (parts.length > 1) ? new Locale(parts[0], parts[1]) : new Locale(parts[0]);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SavedQueriesCacheTest extends AndroidTestCase {
+
+    public void testPrefixLookup() {
+        final SavedQueriesCache cache = new SavedQueriesCache(10);
+        cache.put("wifi", 1);
+        cache.put("wifi calling", 2);
+        cache.put("wallpaper", 3);
+        cache.put("bluetooth", 4);
+
+        assertEquals(Arrays.asList("wallpaper", "wifi calling", "wifi"),
+                cache.getSuggestions("w", 10));
+        assertEquals(Arrays.asList("wifi calling", "wifi"), cache.getSuggestions("wifi", 10));
+        assertEquals(Arrays.asList("wifi calling"), cache.getSuggestions("wifi ", 10));
+        assertTrue(cache.getSuggestions("x", 10).isEmpty());
+        assertTrue(cache.getSuggestions("wifi calling now", 10).isEmpty());
+    }
+
+    public void testEmptyPrefixReturnsEverythingMostRecentFirst() {
+        final SavedQueriesCache cache = new SavedQueriesCache(10);
+        cache.put("b", 2);
+        cache.put("a", 1);
+        cache.put("c", 3);
+
+        assertEquals(Arrays.asList("c", "b", "a"), cache.getSuggestions("", 10));
+        assertEquals(Arrays.asList("c", "b", "a"), cache.getSuggestions(null, 10));
+        assertEquals(Arrays.asList("c", "b"), cache.getSuggestions("", 2));
+    }
+
+    public void testKeysAreLowerCase() {
+        final SavedQueriesCache cache = new SavedQueriesCache(10);
+        cache.put("WiFi", 1);
+
+        assertEquals(Arrays.asList("WiFi"), cache.getSuggestions("wi", 10));
+        assertEquals(Arrays.asList("WiFi"), cache.getSuggestions("WIFI", 10));
+
+        // Same key: the most recent spelling wins and the query is only listed once
+        cache.put("wifi", 2);
+        assertEquals(Arrays.asList("wifi"), cache.getSuggestions("w", 10));
+
+        // An older timestamp does not replace it
+        cache.put("WIFI", 0);
+        assertEquals(Arrays.asList("wifi"), cache.getSuggestions("w", 10));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        final SavedQueriesCache cache = new SavedQueriesCache(3);
+        cache.put("one", 1);
+        cache.put("two", 2);
+        cache.put("three", 3);
+
+        // Using "one" again makes "two" the least recently used
+        cache.put("one", 4);
+        cache.put("four", 5);
+
+        final List<String> suggestions = cache.getSuggestions("", 10);
+        assertEquals(Arrays.asList("four", "one", "three"), suggestions);
+        assertTrue(cache.getSuggestions("tw", 10).isEmpty());
+
+        // The evicted branch is pruned, the sibling sharing its prefix is kept
+        assertEquals(Arrays.asList("three"), cache.getSuggestions("t", 10));
+    }
+}
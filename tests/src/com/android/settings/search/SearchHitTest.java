@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SearchHitTest extends AndroidTestCase {
+
+    // Indices in Index.MATCH_COLUMNS
+    private static final int TITLE = 0;
+    private static final int KEYWORDS = 2;
+    private static final int SUMMARY_ON = 3;
+
+    public void testTokenizeQuery() {
+        assertEquals(Arrays.asList("wi", "fi", "call"), Index.tokenizeQuery("wi-fi  call"));
+        assertEquals(Arrays.asList("caf\u00e9", "2g"), Index.tokenizeQuery("caf\u00e9/2g "));
+        assertTrue(Index.tokenizeQuery("  -- \"*\" ").isEmpty());
+        assertTrue(Index.tokenizeQuery("").isEmpty());
+        assertTrue(Index.tokenizeQuery(null).isEmpty());
+    }
+
+    public void testCreateFromMatchInfo() {
+        final int[] hits = new int[2 * Index.MATCH_COLUMNS.length];
+        hits[phrase(0, TITLE)] = 1;
+        hits[phrase(1, TITLE)] = 2;
+        final Index.SearchHit hit = createHit(2, "Wi-Fi calling", null, null, hits, 2);
+
+        assertNotNull(hit);
+        assertTrue(hit.primary);
+        assertEquals(2, hit.rank);
+        assertEquals("Wi-Fi calling", hit.values[Index.COLUMN_INDEX_TITLE]);
+        assertEquals(2L, hit.values[Index.COLUMN_INDEX_RANK]);
+        assertTrue(hit.relevance > 0);
+    }
+
+    public void testSecondaryMatchIsNotPrimary() {
+        final int[] hits = new int[2 * Index.MATCH_COLUMNS.length];
+        hits[phrase(0, TITLE)] = 1;
+        hits[phrase(1, SUMMARY_ON)] = 1;
+        final Index.SearchHit hit = createHit(1, "Wi-Fi", null, "Calling over Wi-Fi", hits, 2);
+
+        assertNotNull(hit);
+        assertFalse(hit.primary);
+    }
+
+    public void testRowMissingATokenIsDropped() {
+        final int[] hits = new int[2 * Index.MATCH_COLUMNS.length];
+        hits[phrase(0, TITLE)] = 3;
+        assertNull(createHit(1, "Wi-Fi", null, null, hits, 2));
+    }
+
+    public void testNarrow() {
+        final int[] hits = new int[Index.MATCH_COLUMNS.length];
+        hits[phrase(0, TITLE)] = 1;
+        final Index.SearchHit hit = createHit(1, "Wi-Fi calling", "wireless", null, hits, 1);
+        assertNotNull(hit);
+
+        // Tokens are matched as prefixes of the words, ignoring the ASCII case
+        final Index.SearchHit narrowed = hit.narrow(Arrays.asList("WI", "cal"));
+        assertNotNull(narrowed);
+        assertTrue(narrowed.primary);
+        assertSame(hit.values, narrowed.values);
+        assertNotNull(hit.narrow(Arrays.asList("fi")));
+        assertNotNull(hit.narrow(Arrays.asList("wirel")));
+
+        assertNull(hit.narrow(Arrays.asList("wi", "xyz")));
+        assertNull(hit.narrow(Arrays.asList("alling")));
+    }
+
+    public void testNarrowHits() {
+        final int[] hits = new int[Index.MATCH_COLUMNS.length];
+        hits[phrase(0, TITLE)] = 1;
+        final List<Index.SearchHit> previous = new ArrayList<Index.SearchHit>();
+        previous.add(createHit(1, "Wi-Fi calling", null, null, hits, 1));
+        previous.add(createHit(1, "Wi-Fi", null, null, hits, 1));
+
+        assertEquals(1, Index.narrowHits(previous, Arrays.asList("wi", "call")).size());
+        assertTrue(Index.narrowHits(previous, Arrays.asList("wi", "zzz")).isEmpty());
+
+        // A query without tokens is never narrowed to, as it matches nothing in the database
+        assertNull(Index.narrowHits(previous, Collections.<String>emptyList()));
+        assertNull(Index.narrowHits(previous, Index.tokenizeQuery("- ")));
+    }
+
+    public void testOrder() {
+        final int[] titleHit = new int[Index.MATCH_COLUMNS.length];
+        titleHit[phrase(0, TITLE)] = 1;
+        final int[] titleHits = new int[Index.MATCH_COLUMNS.length];
+        titleHits[phrase(0, TITLE)] = 2;
+        final int[] summaryHit = new int[Index.MATCH_COLUMNS.length];
+        summaryHit[phrase(0, SUMMARY_ON)] = 5;
+
+        final Index.SearchHit secondary = createHit(0, "a", null, "wifi", summaryHit, 1);
+        final Index.SearchHit lowRank = createHit(2, "wifi", null, null, titleHits, 1);
+        final Index.SearchHit relevant = createHit(1, "wifi wifi", null, null, titleHits, 1);
+        final Index.SearchHit lessRelevant = createHit(1, "wifi", null, null, titleHit, 1);
+
+        final List<Index.SearchHit> list = new ArrayList<Index.SearchHit>(
+                Arrays.asList(secondary, lowRank, lessRelevant, relevant));
+        Collections.sort(list);
+        assertEquals(Arrays.asList(relevant, lessRelevant, lowRank, secondary), list);
+    }
+
+    private static int phrase(int token, int column) {
+        return token * Index.MATCH_COLUMNS.length + column;
+    }
+
+    /**
+     * Create a hit from a row with the given texts and the 'pcx' matchinfo that FTS would
+     * compute for the given number of hits of each phrase.
+     */
+    private static Index.SearchHit createHit(int rank, String title, String keywords,
+            String summaryOn, int[] phraseHits, int tokenCount) {
+        final int selectCount = Index.SELECT_COLUMNS.length;
+        final int matchCount = Index.MATCH_COLUMNS.length;
+        final String[] columns = new String[selectCount + matchCount + 1];
+        for (int n = 0; n < selectCount; n++) {
+            columns[n] = Index.SELECT_COLUMNS[n];
+        }
+        for (int n = 0; n < matchCount; n++) {
+            columns[selectCount + n] = "match_" + Index.MATCH_COLUMNS[n];
+        }
+        columns[selectCount + matchCount] = "matchinfo";
+
+        final Object[] row = new Object[columns.length];
+        row[Index.COLUMN_INDEX_RANK] = rank;
+        row[Index.COLUMN_INDEX_TITLE] = title;
+        row[Index.COLUMN_INDEX_KEYWORDS] = keywords;
+        row[Index.COLUMN_INDEX_SUMMARY_ON] = summaryOn;
+        row[selectCount + TITLE] = title;
+        row[selectCount + KEYWORDS] = keywords;
+        row[selectCount + SUMMARY_ON] = summaryOn;
+        row[selectCount + matchCount] = buildMatchInfo(phraseHits, matchCount);
+
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        cursor.addRow(row);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return Index.SearchHit.create(cursor, tokenCount);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static byte[] buildMatchInfo(int[] phraseHits, int columnCount) {
+        final int size = 4 * (2 + 3 * phraseHits.length * columnCount);
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        buffer.putInt(phraseHits.length);
+        buffer.putInt(columnCount);
+        for (int p = 0; p < phraseHits.length; p++) {
+            for (int c = 0; c < columnCount; c++) {
+                // Each phrase only looks at its own column
+                final int hits = (c == p % columnCount) ? phraseHits[p] : 0;
+                buffer.putInt(hits);
+                buffer.putInt(hits);
+                buffer.putInt(hits > 0 ? 1 : 0);
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.tests;
+
+import android.test.InstrumentationTestRunner;
+
+import com.android.settings.DataUsageAdapterBenchmark;
+import com.android.settings.applications.ApplicationsStateBenchmark;
+import com.android.settings.search.IndexBenchmark;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Runs the benchmarks of the {@link BenchmarkTestCase}s, which the test suite leaves out.
+ * Results are logged and reported as instrumentation status:
+ *
+ *   adb shell am instrument -w \
+ *    com.android.settings.tests/com.android.settings.tests.BenchmarkRunner
+ */
+public class BenchmarkRunner extends InstrumentationTestRunner {
+
+    private static final Class<?>[] BENCHMARKS = {
+        IndexBenchmark.class,
+        ApplicationsStateBenchmark.class,
+        DataUsageAdapterBenchmark.class,
+    };
+
+    @Override
+    public TestSuite getAllTests() {
+        final TestSuite suite = new TestSuite();
+        for (Class<?> clazz : BENCHMARKS) {
+            for (Method method : clazz.getMethods()) {
+                if (isBenchmark(method)) {
+                    suite.addTest(newBenchmark(clazz, method.getName()));
+                }
+            }
+        }
+        return suite;
+    }
+
+    private static boolean isBenchmark(Method method) {
+        return method.getName().startsWith(BenchmarkTestCase.BENCHMARK_PREFIX)
+                && method.getParameterTypes().length == 0
+                && Modifier.isPublic(method.getModifiers())
+                && !Modifier.isStatic(method.getModifiers());
+    }
+
+    private static TestCase newBenchmark(Class<?> clazz, String name) {
+        try {
+            final TestCase benchmark = (TestCase) clazz.newInstance();
+            benchmark.setName(name);
+            return benchmark;
+        } catch (InstantiationException e) {
+            throw new RuntimeException("Cannot create benchmark " + clazz.getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot create benchmark " + clazz.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.tests;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Base class of the Settings benchmarks.
+ *
+ * Benchmarks are the methods whose name starts with {@link #BENCHMARK_PREFIX}. They are not
+ * run by the test suite, only by {@link BenchmarkRunner}. Test methods of a benchmark class
+ * still run with the suite.
+ */
+public abstract class BenchmarkTestCase extends InstrumentationTestCase {
+
+    public static final String BENCHMARK_PREFIX = "benchmark";
+
+    private final String mTag;
+
+    protected BenchmarkTestCase(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Log the statistics of the given samples, in nanoseconds, and report them as
+     * instrumentation status. This sorts the samples.
+     */
+    protected void report(String name, long[] samples) {
+        report(name, samples, null);
+    }
+
+    /**
+     * Same as {@link #report(String, long[])} with some details logged and reported along.
+     */
+    protected void report(String name, long[] samples, String details) {
+        Arrays.sort(samples);
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        final long mean = total / samples.length;
+        final long median = percentile(samples, 50);
+        final long p90 = percentile(samples, 90);
+        final long p99 = percentile(samples, 99);
+        final long max = samples[samples.length - 1];
+
+        final StringBuilder sb = new StringBuilder(name);
+        sb.append(": mean=").append(toMicros(mean));
+        sb.append("us median=").append(toMicros(median));
+        sb.append("us p90=").append(toMicros(p90));
+        sb.append("us p99=").append(toMicros(p99));
+        sb.append("us max=").append(toMicros(max)).append("us");
+        if (details != null) {
+            sb.append('\n').append(details);
+        }
+        Log.i(mTag, sb.toString());
+
+        final Bundle results = new Bundle();
+        results.putLong(name + "_mean_ns", mean);
+        results.putLong(name + "_median_ns", median);
+        results.putLong(name + "_p90_ns", p90);
+        results.putLong(name + "_p99_ns", p99);
+        results.putLong(name + "_max_ns", max);
+        if (details != null) {
+            results.putString(name + "_details", details);
+        }
+        getInstrumentation().sendStatus(Activity.RESULT_OK, results);
+    }
+
+    private static long percentile(long[] sortedSamples, int percent) {
+        final int index = (sortedSamples.length * percent) / 100;
+        return sortedSamples[Math.min(sortedSamples.length - 1, index)];
+    }
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+}
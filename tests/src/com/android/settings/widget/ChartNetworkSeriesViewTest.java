@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import android.test.AndroidTestCase;
+
+import com.android.settings.widget.ChartNetworkSeriesView.Points;
+
+public class ChartNetworkSeriesViewTest extends AndroidTestCase {
+
+    public void testKeepsFirstAndLastVertexOfEachColumn() {
+        final Points points = new Points();
+        points.reset(16);
+
+        // Column 0
+        points.add(0.1f, 10);
+        points.add(0.4f, 20);
+        points.add(0.6f, 30);
+        points.add(0.9f, 40);
+        // Column 1, a single vertex
+        points.add(1.5f, 50);
+        // Column 3, after an empty column
+        points.add(3.0f, 60);
+        points.add(3.2f, 70);
+        points.add(3.7f, 80);
+
+        assertPoints(points,
+                new float[] { 0.1f, 0.9f, 1.5f, 3.0f, 3.7f },
+                new long[] { 10, 40, 50, 60, 80 });
+    }
+
+    public void testManyVerticesInOneColumn() {
+        final Points points = new Points();
+        points.reset(4);
+        for (int n = 0; n < 1000; n++) {
+            points.add(5 + n / 1000f, n);
+        }
+        assertPoints(points, new float[] { 5f, 5 + 999 / 1000f }, new long[] { 0, 999 });
+    }
+
+    public void testGrowsPastCapacity() {
+        final Points points = new Points();
+        points.reset(0);
+        final int count = 100;
+        final float[] expectedX = new float[count];
+        final long[] expectedTotal = new long[count];
+        for (int n = 0; n < count; n++) {
+            expectedX[n] = n;
+            expectedTotal[n] = n * 10;
+            points.add(expectedX[n], expectedTotal[n]);
+        }
+        assertPoints(points, expectedX, expectedTotal);
+    }
+
+    public void testResetStartsANewColumn() {
+        final Points points = new Points();
+        points.reset(8);
+        points.add(2.1f, 1);
+        points.add(2.2f, 2);
+        points.add(2.3f, 3);
+
+        points.reset(8);
+        points.add(2.4f, 4);
+        points.add(2.5f, 5);
+        assertPoints(points, new float[] { 2.4f, 2.5f }, new long[] { 4, 5 });
+    }
+
+    private static void assertPoints(Points points, float[] expectedX, long[] expectedTotal) {
+        assertEquals(expectedX.length, points.count);
+        for (int n = 0; n < expectedX.length; n++) {
+            assertEquals("x at " + n, expectedX[n], points.x[n]);
+            assertEquals("total at " + n, expectedTotal[n], points.total[n]);
+        }
+    }
+}